@@ -0,0 +1,120 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import be.nabu.libs.artifacts.api.Artifact;
+
+/**
+ * Keeps the most recently resolved artifacts by id, older artifacts are only softly referenced so the garbage collector can reclaim them.
+ * The cached artifacts are not attached to their nodes, this cache is the only thing keeping them in memory and a reclaimed artifact is parsed again when it is needed.
+ * Every invalidation starts a new generation, an artifact that was looked up in an older generation is not cached as it may be stale.
+ */
+class ArtifactCache {
+	
+	private long generation;
+	private Map<String, Artifact> recent;
+	private Map<String, SoftReference<Artifact>> evicted = new HashMap<String, SoftReference<Artifact>>();
+	
+	public ArtifactCache(final int maxSize) {
+		recent = new LinkedHashMap<String, Artifact>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Artifact> eldest) {
+				if (size() > maxSize) {
+					evicted.put(eldest.getKey(), new SoftReference<Artifact>(eldest.getValue()));
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	public synchronized Artifact get(String id) {
+		Artifact artifact = recent.get(id);
+		if (artifact == null) {
+			SoftReference<Artifact> reference = evicted.remove(id);
+			artifact = reference == null ? null : reference.get();
+			// promote it again
+			if (artifact != null) {
+				recent.put(id, artifact);
+			}
+		}
+		return artifact;
+	}
+	
+	/**
+	 * The generation should be requested before the artifact is looked up
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+	
+	/**
+	 * Returns the artifact that is cached from now on: if another thread cached the same id in the meantime, its instance wins so everyone sees the same artifact
+	 */
+	public synchronized Artifact put(String id, Artifact artifact, long generation) {
+		if (generation == this.generation) {
+			Artifact existing = get(id);
+			if (existing != null) {
+				return existing;
+			}
+			recent.put(id, artifact);
+		}
+		return artifact;
+	}
+	
+	/**
+	 * Removes the given ids and everything below them, null removes everything
+	 */
+	public synchronized void invalidate(Collection<String> ids) {
+		generation++;
+		if (ids == null) {
+			clear();
+		}
+		else {
+			for (String id : ids) {
+				removeTree(id);
+			}
+		}
+	}
+	
+	private void removeTree(String id) {
+		for (String key : new ArrayList<String>(recent.keySet())) {
+			if (RepositoryManifest.isPart(key, id)) {
+				recent.remove(key);
+			}
+		}
+		for (String key : new ArrayList<String>(evicted.keySet())) {
+			if (RepositoryManifest.isPart(key, id)) {
+				evicted.remove(key);
+			}
+		}
+	}
+	
+	private void clear() {
+		recent.clear();
+		evicted.clear();
+	}
+}
@@ -0,0 +1,278 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.services.api.ServiceResult;
+
+/**
+ * Keeps track of asynchronous invocations so they can be awaited, cancelled or followed up by a callback.
+ * The amount of outstanding invocations per host is bounded, finished invocations are kept for a while so their result can still be picked up.
+ * A permit is only given back once the worker has actually stopped, a cancelled call that is still winding down keeps counting as outstanding.
+ */
+public class AsyncInvocationRegistry {
+
+	public static final int DEFAULT_MAX_OUTSTANDING = 50;
+	public static final long RESULT_TTL = 1000l*60*5;
+	// the total amount of threads over all the hosts
+	public static final int MAX_THREADS = 256;
+	
+	private static AsyncInvocationRegistry instance = new AsyncInvocationRegistry();
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private ConcurrentMap<String, AsyncInvocation> invocations = new ConcurrentHashMap<String, AsyncInvocation>();
+	private ConcurrentMap<String, Permits> permits = new ConcurrentHashMap<String, Permits>();
+	// the finished invocations in the order they finished, so the expired ones are always at the head
+	private Queue<AsyncInvocation> finished = new ArrayDeque<AsyncInvocation>();
+	// calls are never queued, they either get a thread immediately or are rejected
+	private ThreadPoolExecutor executor = new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new DaemonThreadFactory("cluster-async"));
+	
+	public static AsyncInvocationRegistry getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Runs the call in the background, the host (null for local) is only used to bound the amount of outstanding calls.
+	 * The callback (if any) is run once the call has finished, it is not run for cancelled calls.
+	 */
+	public AsyncInvocation submit(String host, String serviceId, int maxOutstanding, final Callable<ServiceResult> call, final AsyncCallback callback) {
+		purge();
+		final Permits hostPermits = getPermits(host);
+		if (!hostPermits.tryAcquire(maxOutstanding)) {
+			throw new IllegalStateException("There are already " + maxOutstanding + " asynchronous calls outstanding for " + (host == null ? "the local server" : "host '" + host + "'"));
+		}
+		final AsyncInvocation invocation = new AsyncInvocation(UUID.randomUUID().toString().replace("-", ""), host, serviceId);
+		invocations.put(invocation.getId(), invocation);
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					synchronized(invocation) {
+						invocation.worker = Thread.currentThread();
+					}
+					try {
+						// it may have been cancelled before it started
+						if (!invocation.isDone()) {
+							boolean completed;
+							try {
+								ServiceResult result = call.call();
+								completed = complete(invocation, result == null ? null : result.getOutput(), result == null ? null : result.getException());
+							}
+							catch (Exception e) {
+								completed = complete(invocation, null, e);
+							}
+							if (completed && callback != null) {
+								try {
+									callback.completed(invocation);
+								}
+								catch (Exception e) {
+									logger.error("The callback for asynchronous call " + invocation.getId() + " to " + invocation.getServiceId() + " failed", e);
+								}
+							}
+						}
+					}
+					finally {
+						synchronized(invocation) {
+							invocation.worker = null;
+						}
+						// a cancel may have interrupted us, the thread is reused
+						Thread.interrupted();
+						hostPermits.release();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			invocations.remove(invocation.getId());
+			invocation.complete(null, e);
+			hostPermits.release();
+			throw e;
+		}
+		return invocation;
+	}
+	
+	public AsyncInvocation get(String id) {
+		purge();
+		return invocations.get(id);
+	}
+	
+	/**
+	 * Cancels the invocation if it has not finished yet, returns whether it was cancelled.
+	 * The worker is interrupted but keeps its permit until it actually stops.
+	 */
+	public boolean cancel(String id) {
+		AsyncInvocation invocation = invocations.get(id);
+		if (invocation != null && complete(invocation, null, new CancellationException("The asynchronous call " + id + " was cancelled"))) {
+			synchronized(invocation) {
+				if (invocation.worker != null) {
+					invocation.worker.interrupt();
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	private boolean complete(AsyncInvocation invocation, Object output, Exception exception) {
+		if (invocation.complete(output, exception)) {
+			synchronized(finished) {
+				finished.add(invocation);
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	private Permits getPermits(String host) {
+		String key = host == null ? "$local" : host;
+		Permits hostPermits = permits.get(key);
+		if (hostPermits == null) {
+			hostPermits = new Permits();
+			Permits existing = permits.putIfAbsent(key, hostPermits);
+			if (existing != null) {
+				hostPermits = existing;
+			}
+		}
+		return hostPermits;
+	}
+	
+	/**
+	 * The amount of calls for the host (null for local) that still hold a permit
+	 */
+	public int getOutstanding(String host) {
+		Permits hostPermits = permits.get(host == null ? "$local" : host);
+		return hostPermits == null ? 0 : hostPermits.getOutstanding();
+	}
+	
+	/**
+	 * Counts the outstanding calls rather than the available permits, this way a changed limit applies immediately to the calls that are already running.
+	 */
+	private static class Permits {
+		private int outstanding;
+		
+		private synchronized boolean tryAcquire(int limit) {
+			if (outstanding >= limit) {
+				return false;
+			}
+			outstanding++;
+			return true;
+		}
+		
+		private synchronized void release() {
+			outstanding--;
+		}
+		
+		private synchronized int getOutstanding() {
+			return outstanding;
+		}
+	}
+	
+	// finished invocations are only kept for a limited time, only the expired ones are visited
+	private void purge() {
+		long limit = System.currentTimeMillis() - RESULT_TTL;
+		synchronized(finished) {
+			while (!finished.isEmpty() && finished.peek().getCompleted() < limit) {
+				AsyncInvocation invocation = finished.poll();
+				invocations.remove(invocation.getId(), invocation);
+			}
+		}
+	}
+	
+	public interface AsyncCallback {
+		public void completed(AsyncInvocation invocation) throws Exception;
+	}
+	
+	public static class AsyncInvocation {
+		private String id, host, serviceId;
+		private long started = System.currentTimeMillis();
+		private volatile long completed;
+		private volatile Object output;
+		private volatile Exception exception;
+		// the thread running the call, only accessed while holding the lock on the invocation
+		private Thread worker;
+		private CountDownLatch latch = new CountDownLatch(1);
+		private AtomicBoolean done = new AtomicBoolean();
+		
+		private AsyncInvocation(String id, String host, String serviceId) {
+			this.id = id;
+			this.host = host;
+			this.serviceId = serviceId;
+		}
+		
+		// only the first completion (finished or cancelled) counts
+		private boolean complete(Object output, Exception exception) {
+			if (done.compareAndSet(false, true)) {
+				this.output = output;
+				this.exception = exception;
+				this.completed = System.currentTimeMillis();
+				latch.countDown();
+				return true;
+			}
+			return false;
+		}
+		
+		/**
+		 * Waits at most the timeout (in ms) for the invocation to finish, returns whether it is done
+		 */
+		public boolean await(long timeout) throws InterruptedException {
+			return latch.await(timeout, TimeUnit.MILLISECONDS);
+		}
+		
+		// the latch is only released once the result is set
+		public boolean isDone() {
+			return latch.getCount() == 0;
+		}
+		public String getId() {
+			return id;
+		}
+		public String getHost() {
+			return host;
+		}
+		public String getServiceId() {
+			return serviceId;
+		}
+		public long getStarted() {
+			return started;
+		}
+		public long getCompleted() {
+			return completed;
+		}
+		public Object getOutput() {
+			return output;
+		}
+		public Exception getException() {
+			return exception;
+		}
+	}
+}
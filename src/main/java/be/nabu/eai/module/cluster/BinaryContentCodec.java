@@ -0,0 +1,359 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.types.ComplexContentWrapperFactory;
+import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+
+/**
+ * A compact binary encoding for complex content that is exchanged between servers running the same type definitions.
+ * The type definition acts as the schema: fields are written in definition order without their names, only a presence marker and the value.
+ * The header contains a fingerprint of the type so content is never decoded with a definition that differs from the one it was encoded with.
+ * Content that can not be encoded faithfully (e.g. untyped fields, extended types or numbers of another class) throws an {@link UnsupportedOperationException} so the caller can fall back to the regular format.
+ * Note that the encoded bytes are sent as a field of a regular remote call so they keep its authentication, this means they are base64 encoded on the wire.
+ */
+public class BinaryContentCodec {
+	
+	public static final String FORMAT = "binary/2";
+	private static final byte VERSION = 2;
+	
+	// the fingerprints per type, they are dropped whenever a type may have changed
+	private static Map<ComplexType, Long> fingerprints = Collections.synchronizedMap(new WeakHashMap<ComplexType, Long>());
+	private static AtomicLong generation = new AtomicLong();
+	
+	public static byte[] encode(ComplexType type, ComplexContent content) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeByte(VERSION);
+		output.writeLong(fingerprint(type));
+		writeComplex(output, type, content);
+		output.flush();
+		return bytes.toByteArray();
+	}
+	
+	public static ComplexContent decode(ComplexType type, byte[] bytes) throws IOException {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+		byte version = input.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported binary content version: " + version);
+		}
+		if (input.readLong() != fingerprint(type)) {
+			throw new IOException("The binary content was encoded for a different definition of " + type);
+		}
+		return readComplex(input, type);
+	}
+	
+	/**
+	 * Whether the content was encoded with this version of the codec and the same definition of the type
+	 */
+	public static boolean isCompatible(ComplexType type, byte[] bytes) {
+		return bytes != null && bytes.length >= 9 && bytes[0] == VERSION && ByteBuffer.wrap(bytes, 1, 8).getLong() == fingerprint(type);
+	}
+	
+	/**
+	 * A fingerprint of the structure of the type: the names, types and list flags of all the fields, recursively.
+	 * It is cached per type, as a type can be modified in place the cache must be invalidated whenever the repository changes.
+	 */
+	public static long fingerprint(ComplexType type) {
+		// a fingerprint that was calculated before an invalidation may be stale, it is not cached
+		long generation = BinaryContentCodec.generation.get();
+		Long fingerprint = fingerprints.get(type);
+		if (fingerprint == null) {
+			fingerprint = calculateFingerprint(type);
+			synchronized(fingerprints) {
+				if (generation == BinaryContentCodec.generation.get()) {
+					fingerprints.put(type, fingerprint);
+				}
+			}
+		}
+		return fingerprint;
+	}
+	
+	/**
+	 * Drops all the cached fingerprints, they are calculated again when they are needed
+	 */
+	public static void invalidate() {
+		synchronized(fingerprints) {
+			generation.incrementAndGet();
+			fingerprints.clear();
+		}
+	}
+	
+	private static long calculateFingerprint(ComplexType type) {
+		StringBuilder builder = new StringBuilder();
+		describe(type, builder, new ArrayList<ComplexType>());
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return ByteBuffer.wrap(digest.digest(builder.toString().getBytes("UTF-8"))).getLong();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static void describe(ComplexType type, StringBuilder builder, List<ComplexType> parents) {
+		// a recursive type refers back to the parent it repeats
+		int index = parents.indexOf(type);
+		if (index >= 0) {
+			builder.append('^').append(index);
+			return;
+		}
+		parents.add(type);
+		builder.append('{');
+		for (Element<?> element : TypeUtils.getAllChildren(type)) {
+			builder.append(element.getName());
+			if (element.getType().isList(element.getProperties())) {
+				builder.append("[]");
+			}
+			builder.append(':');
+			if (element.getType() instanceof ComplexType) {
+				describe((ComplexType) element.getType(), builder, parents);
+			}
+			else if (element.getType() instanceof SimpleType) {
+				builder.append(((SimpleType<?>) element.getType()).getInstanceClass().getName());
+			}
+			else {
+				builder.append('?');
+			}
+			builder.append(';');
+		}
+		builder.append('}');
+		parents.remove(parents.size() - 1);
+	}
+	
+	private static void writeComplex(DataOutputStream output, ComplexType type, ComplexContent content) throws IOException {
+		if (content == null) {
+			output.writeBoolean(false);
+			return;
+		}
+		// the schema must match exactly, otherwise we would silently drop the fields of an extension
+		if (!type.equals(content.getType())) {
+			throw new UnsupportedOperationException("The content of type " + content.getType() + " does not match the expected type " + type);
+		}
+		output.writeBoolean(true);
+		for (Element<?> element : TypeUtils.getAllChildren(type)) {
+			Object value = content.get(element.getName());
+			if (element.getType().isList(element.getProperties())) {
+				if (value == null) {
+					output.writeInt(-1);
+				}
+				else {
+					Collection<?> values = value instanceof Object[] ? Arrays.asList((Object[]) value) : value instanceof Collection ? (Collection<?>) value : null;
+					if (values == null) {
+						throw new UnsupportedOperationException("Unsupported list value for " + element.getName() + ": " + value.getClass());
+					}
+					output.writeInt(values.size());
+					for (Object single : values) {
+						writeValue(output, element, single);
+					}
+				}
+			}
+			else {
+				writeValue(output, element, value);
+			}
+		}
+	}
+	
+	private static void writeValue(DataOutputStream output, Element<?> element, Object value) throws IOException {
+		if (element.getType() instanceof ComplexType) {
+			ComplexContent content = value == null || value instanceof ComplexContent ? (ComplexContent) value : ComplexContentWrapperFactory.getInstance().getWrapper().wrap(value);
+			if (value != null && content == null) {
+				throw new UnsupportedOperationException("Can not wrap the value of " + element.getName() + ": " + value.getClass());
+			}
+			writeComplex(output, (ComplexType) element.getType(), content);
+		}
+		else if (element.getType() instanceof SimpleType) {
+			if (value == null) {
+				output.writeBoolean(false);
+				return;
+			}
+			output.writeBoolean(true);
+			writeSimple(output, ((SimpleType<?>) element.getType()).getInstanceClass(), value, element.getName());
+		}
+		else {
+			throw new UnsupportedOperationException("Unsupported type for " + element.getName() + ": " + element.getType());
+		}
+	}
+	
+	// numbers must be of the exact class, anything else could be narrowed (or widened) on the way
+	private static void writeSimple(DataOutputStream output, Class<?> instanceClass, Object value, String name) throws IOException {
+		if (String.class.equals(instanceClass) && value instanceof String) {
+			writeString(output, (String) value);
+		}
+		else if (Boolean.class.equals(instanceClass) && value instanceof Boolean) {
+			output.writeBoolean((Boolean) value);
+		}
+		else if (Integer.class.equals(instanceClass) && value instanceof Integer) {
+			output.writeInt((Integer) value);
+		}
+		else if (Long.class.equals(instanceClass) && value instanceof Long) {
+			output.writeLong((Long) value);
+		}
+		else if (Double.class.equals(instanceClass) && value instanceof Double) {
+			output.writeDouble((Double) value);
+		}
+		else if (Float.class.equals(instanceClass) && value instanceof Float) {
+			output.writeFloat((Float) value);
+		}
+		else if (Short.class.equals(instanceClass) && value instanceof Short) {
+			output.writeShort((Short) value);
+		}
+		else if (Byte.class.equals(instanceClass) && value instanceof Byte) {
+			output.writeByte((Byte) value);
+		}
+		else if (Date.class.equals(instanceClass) && value instanceof Date) {
+			output.writeLong(((Date) value).getTime());
+		}
+		else if (byte[].class.equals(instanceClass) && value instanceof byte[]) {
+			output.writeInt(((byte[]) value).length);
+			output.write((byte[]) value);
+		}
+		else if ((BigDecimal.class.equals(instanceClass) && value instanceof BigDecimal)
+				|| (BigInteger.class.equals(instanceClass) && value instanceof BigInteger)
+				|| (UUID.class.equals(instanceClass) && value instanceof UUID)
+				|| (URI.class.equals(instanceClass) && value instanceof URI)) {
+			writeString(output, value.toString());
+		}
+		else {
+			throw new UnsupportedOperationException("Unsupported value for " + name + ": " + value.getClass() + " (expected " + instanceClass + ")");
+		}
+	}
+	
+	private static ComplexContent readComplex(DataInputStream input, ComplexType type) throws IOException {
+		if (!input.readBoolean()) {
+			return null;
+		}
+		ComplexContent content = type.newInstance();
+		for (Element<?> element : TypeUtils.getAllChildren(type)) {
+			if (element.getType().isList(element.getProperties())) {
+				int size = input.readInt();
+				if (size >= 0) {
+					List<Object> values = new ArrayList<Object>(size);
+					for (int i = 0; i < size; i++) {
+						values.add(readValue(input, element));
+					}
+					content.set(element.getName(), values);
+				}
+			}
+			else {
+				Object value = readValue(input, element);
+				if (value != null) {
+					content.set(element.getName(), value);
+				}
+			}
+		}
+		return content;
+	}
+	
+	private static Object readValue(DataInputStream input, Element<?> element) throws IOException {
+		if (element.getType() instanceof ComplexType) {
+			return readComplex(input, (ComplexType) element.getType());
+		}
+		else if (!input.readBoolean()) {
+			return null;
+		}
+		Class<?> instanceClass = ((SimpleType<?>) element.getType()).getInstanceClass();
+		if (String.class.equals(instanceClass)) {
+			return readString(input);
+		}
+		else if (Boolean.class.equals(instanceClass)) {
+			return input.readBoolean();
+		}
+		else if (Integer.class.equals(instanceClass)) {
+			return input.readInt();
+		}
+		else if (Long.class.equals(instanceClass)) {
+			return input.readLong();
+		}
+		else if (Double.class.equals(instanceClass)) {
+			return input.readDouble();
+		}
+		else if (Float.class.equals(instanceClass)) {
+			return input.readFloat();
+		}
+		else if (Short.class.equals(instanceClass)) {
+			return input.readShort();
+		}
+		else if (Byte.class.equals(instanceClass)) {
+			return input.readByte();
+		}
+		else if (Date.class.equals(instanceClass)) {
+			return new Date(input.readLong());
+		}
+		else if (byte[].class.equals(instanceClass)) {
+			byte[] bytes = new byte[input.readInt()];
+			input.readFully(bytes);
+			return bytes;
+		}
+		else if (BigDecimal.class.equals(instanceClass)) {
+			return new BigDecimal(readString(input));
+		}
+		else if (BigInteger.class.equals(instanceClass)) {
+			return new BigInteger(readString(input));
+		}
+		else if (UUID.class.equals(instanceClass)) {
+			return UUID.fromString(readString(input));
+		}
+		else if (URI.class.equals(instanceClass)) {
+			return URI.create(readString(input));
+		}
+		throw new IOException("Unsupported type for " + element.getName() + ": " + instanceClass);
+	}
+	
+	// unlike writeUTF this has no 64kb limit
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		byte[] bytes = value.getBytes("UTF-8");
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+	
+	private static String readString(DataInputStream input) throws IOException {
+		byte[] bytes = new byte[input.readInt()];
+		input.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
@@ -17,13 +17,36 @@
 
 package be.nabu.eai.module.cluster;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLContext;
 
@@ -32,8 +55,11 @@ import nabu.misc.cluster.Services;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import be.nabu.eai.module.cluster.api.HostAction;
 import be.nabu.eai.module.cluster.api.MasterSwitcher;
+import be.nabu.eai.module.cluster.api.RepositoryListing;
 import be.nabu.eai.repository.EAIResourceRepository;
+import be.nabu.eai.repository.api.Entry;
 import be.nabu.eai.repository.api.Repository;
 import be.nabu.eai.repository.api.ResourceRepository;
 import be.nabu.eai.repository.api.cluster.ClusterMember;
@@ -48,18 +74,40 @@ import be.nabu.libs.resources.ResourceFactory;
 import be.nabu.libs.resources.ResourceUtils;
 import be.nabu.libs.resources.URIUtils;
 import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.services.DefinedServiceResolverFactory;
+import be.nabu.libs.services.api.DefinedService;
+import be.nabu.libs.services.api.ServiceResult;
+import be.nabu.libs.types.ComplexContentWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
 import be.nabu.utils.bully.BullyClient;
 
 public class ClusterArtifact extends JAXBArtifact<ClusterConfiguration> implements StartableArtifact, StoppableArtifact, be.nabu.eai.repository.api.cluster.ClusterArtifact {
 
+	private static final long SWITCHER_TIMEOUT = 1000l*30, MASTER_LEASE_DURATION = 1000l*5;
+	// shared by all instances so the epoch keeps increasing when the artifact is reloaded
+	private static AtomicLong epoch = new AtomicLong();
+	private static final long HOST_NAME_TTL = 1000l*60*5, HOST_NAME_FAILURE_TTL = 1000l*30, HOST_NAME_TIMEOUT = 1000l*10;
+	
 	private ResourceRepository clusterRepository;
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	private Map<String, ServerConnection> connections = new HashMap<String, ServerConnection>();
-	private Map<String, String> hostNames = new HashMap<String, String>();
-	private static List<MasterSwitcher> switchers = new ArrayList<MasterSwitcher>();
+	private Map<String, HostName> hostNames = new ConcurrentHashMap<String, HostName>();
+	private Future<?> hostNameRefresh;
+	private static CopyOnWriteArrayList<MasterSwitcher> switchers = new CopyOnWriteArrayList<MasterSwitcher>();
+	private static ConcurrentMap<String, SwitcherTiming> switcherTimings = new ConcurrentHashMap<String, SwitcherTiming>();
+	private static ConcurrentMap<MasterSwitcher, SwitcherState> switcherStates = new ConcurrentHashMap<MasterSwitcher, SwitcherState>();
+	private static ExecutorService switcherExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("cluster-switcher"));
+	private static ScheduledExecutorService switcherWatchdog = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cluster-switcher-watchdog"));
 	
 	private BullyClient bullyClient;
-	private String master;
+	private volatile String master;
+	private volatile MasterLease lease;
+	private volatile ExecutorService executor;
+	private volatile ScheduledExecutorService scheduler;
+	// name resolution can block for a long time, it should not delay the scheduled flushes or take threads from the reloads
+	private volatile ExecutorService resolver, lookups;
+	private Set<String> pendingReloads = new LinkedHashSet<String>();
+	private ScheduledFuture<?> pendingFlush;
 	
 	public ClusterArtifact(String id, ResourceContainer<?> directory, Repository repository) {
 		super(id, directory, repository, "cluster.xml", ClusterConfiguration.class);
@@ -81,9 +129,63 @@ public class ClusterArtifact extends JAXBArtifact<ClusterConfiguration> implemen
 		return getBullyClient() != null;
 	}
 	
+	/**
+	 * A cheap local check, it can lag behind the election for at most the duration of the lease
+	 */
 	public boolean isMaster() {
+		MasterLease lease = this.lease;
+		if (lease == null || lease.isExpired()) {
+			lease = renewLease(master);
+		}
+		return lease.isMaster();
+	}
+	
+	/**
+	 * The current lease, if there is no valid lease it is renewed based on the election state
+	 */
+	public MasterLease getMasterLease() {
+		MasterLease lease = this.lease;
+		if (lease == null || lease.isExpired()) {
+			lease = renewLease(master);
+		}
+		return lease;
+	}
+	
+	/**
+	 * Checks that the token belongs to the current lease and that we are still the master according to the election itself, not just the cached lease.
+	 * This only knows about the leadership of this server, see {@link MasterLease} for why the token is advisory.
+	 */
+	public boolean isValidFencingToken(long token) {
+		MasterLease lease = getMasterLease();
+		boolean amMaster = getConfig().getHosts() == null || getConfig().getHosts().size() <= 1 || (getBullyClient() != null && getBullyClient().isCurrentMaster());
+		return amMaster && lease.isMaster() && lease.getEpoch() == token;
+	}
+	
+	private synchronized MasterLease renewLease(String master) {
 		// if the cluster has no hosts or just the one, you are the master of it
-		return getConfig().getHosts() == null || getConfig().getHosts().isEmpty() || getConfig().getHosts().size() == 1 || (getBullyClient() != null && getBullyClient().isCurrentMaster());
+		boolean amMaster = getConfig().getHosts() == null || getConfig().getHosts().size() <= 1 || (getBullyClient() != null && getBullyClient().isCurrentMaster());
+		MasterLease current = this.lease;
+		long epoch;
+		// a renewal of the same leadership keeps the epoch
+		if (current != null && current.isMaster() == amMaster && (master == null ? current.getMaster() == null : master.equals(current.getMaster()))) {
+			epoch = current.getEpoch();
+		}
+		else {
+			epoch = nextEpoch();
+		}
+		long duration = getConfig().getMasterLeaseDuration() == null ? MASTER_LEASE_DURATION : getConfig().getMasterLeaseDuration();
+		this.lease = new MasterLease(master, amMaster, epoch, System.currentTimeMillis() + duration);
+		return this.lease;
+	}
+	
+	private static long nextEpoch() {
+		while (true) {
+			long last = epoch.get();
+			long next = Math.max(last + 1, System.currentTimeMillis());
+			if (epoch.compareAndSet(last, next)) {
+				return next;
+			}
+		}
 	}
 
 	public String getMaster() {
@@ -91,31 +193,187 @@ public class ClusterArtifact extends JAXBArtifact<ClusterConfiguration> implemen
 	}
 
 	void setMaster(String master) {
-		// only trigger on actual change
-		if ((master == null && this.master != null) || (master != null && !master.equals(this.master))) {
-			synchronized(switchers) {
-				for (MasterSwitcher switcher : switchers) {
-					switcher.switchMaster(master, isMaster());
-				}
+		boolean amMaster;
+		synchronized(this) {
+			// only trigger on actual change
+			if ((master == null && this.master == null) || (master != null && master.equals(this.master))) {
+				return;
 			}
+			// the master is updated immediately, regardless of how long the switchers take
 			this.master = master;
+			amMaster = renewLease(master).isMaster();
+			// this only hands the change to the switchers, it is done while locked so they see the changes in order
+			notifySwitchers(master, amMaster);
 		}
 	}
 	
-	public void addSwitcher(MasterSwitcher switcher) {
+	/**
+	 * Every switcher is notified independently on its own thread, a slow switcher does not delay the others.
+	 * A switcher is never called concurrently with itself: if it is still busy with a previous change, only the latest change is remembered and applied once it finishes.
+	 */
+	private void notifySwitchers(String master, boolean amMaster) {
+		long timeout = getConfig().getSwitcherTimeout() == null ? SWITCHER_TIMEOUT : getConfig().getSwitcherTimeout();
+		for (MasterSwitcher switcher : switchers) {
+			notifySwitcher(switcher, new MasterSwitch(master, amMaster), timeout);
+		}
+	}
+	
+	private void notifySwitcher(final MasterSwitcher switcher, final MasterSwitch change, final long timeout) {
+		// it was removed in the meantime
 		if (!switchers.contains(switcher)) {
-			synchronized(switchers) {
-				if (!switchers.contains(switcher)) {
-					switchers.add(switcher);
+			return;
+		}
+		final SwitcherState state = getState(switcher);
+		synchronized(state) {
+			if (state.running) {
+				state.pending = change;
+				logger.warn("Master switcher " + switcher + " is still busy with a previous change, the new change is queued");
+				return;
+			}
+			state.running = true;
+		}
+		switcherExecutor.submit(new Runnable() {
+			@Override
+			public void run() {
+				MasterSwitch current = change;
+				while (current != null) {
+					switchMaster(switcher, current, timeout);
+					synchronized(state) {
+						current = state.removed ? null : state.pending;
+						state.pending = null;
+						if (current == null) {
+							state.running = false;
+							// it was removed while we were busy, the state is only dropped now that nothing uses it anymore
+							if (state.removed) {
+								switcherStates.remove(switcher, state);
+							}
+						}
+					}
 				}
 			}
+		});
+	}
+	
+	private void switchMaster(final MasterSwitcher switcher, MasterSwitch change, final long timeout) {
+		final SwitcherTiming timing = getTiming(switcher);
+		// we don't interrupt a slow switcher, it may be halfway through, but we do report it
+		ScheduledFuture<?> watchdog = switcherWatchdog.schedule(new Runnable() {
+			@Override
+			public void run() {
+				timing.timeouts.incrementAndGet();
+				logger.warn("Master switcher " + switcher + " did not finish within " + timeout + "ms");
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		long started = System.currentTimeMillis();
+		try {
+			switcher.switchMaster(change.master, change.amMaster);
+		}
+		catch (Exception e) {
+			logger.error("Master switcher " + switcher + " failed", e);
+			timing.failures.incrementAndGet();
+		}
+		finally {
+			watchdog.cancel(false);
+			timing.record(System.currentTimeMillis() - started);
+		}
+	}
+	
+	private static SwitcherState getState(MasterSwitcher switcher) {
+		SwitcherState state = switcherStates.get(switcher);
+		if (state == null) {
+			switcherStates.putIfAbsent(switcher, new SwitcherState());
+			state = switcherStates.get(switcher);
+		}
+		return state;
+	}
+	
+	private static class SwitcherState {
+		private boolean running, removed;
+		private MasterSwitch pending;
+	}
+	
+	private static class MasterSwitch {
+		private String master;
+		private boolean amMaster;
+		
+		private MasterSwitch(String master, boolean amMaster) {
+			this.master = master;
+			this.amMaster = amMaster;
+		}
+	}
+	
+	private static SwitcherTiming getTiming(MasterSwitcher switcher) {
+		String name = switcher.getClass().getName();
+		SwitcherTiming timing = switcherTimings.get(name);
+		if (timing == null) {
+			switcherTimings.putIfAbsent(name, new SwitcherTiming());
+			timing = switcherTimings.get(name);
+		}
+		return timing;
+	}
+	
+	/**
+	 * The timings of the switchers (by class), mostly useful to find out which switchers slow down a failover
+	 */
+	public static Map<String, SwitcherTiming> getSwitcherTimings() {
+		return new HashMap<String, SwitcherTiming>(switcherTimings);
+	}
+	
+	public static class SwitcherTiming {
+		private AtomicLong invocations = new AtomicLong(), failures = new AtomicLong(), timeouts = new AtomicLong(), totalDuration = new AtomicLong();
+		private volatile long lastDuration, maxDuration;
+		
+		private void record(long duration) {
+			invocations.incrementAndGet();
+			totalDuration.addAndGet(duration);
+			lastDuration = duration;
+			if (duration > maxDuration) {
+				maxDuration = duration;
+			}
+		}
+		public long getInvocations() {
+			return invocations.get();
+		}
+		public long getFailures() {
+			return failures.get();
+		}
+		public long getTimeouts() {
+			return timeouts.get();
+		}
+		public long getLastDuration() {
+			return lastDuration;
+		}
+		public long getMaxDuration() {
+			return maxDuration;
+		}
+		public long getAverageDuration() {
+			long invocations = this.invocations.get();
+			return invocations == 0 ? 0 : totalDuration.get() / invocations;
+		}
+	}
+	
+	public void addSwitcher(MasterSwitcher switcher) {
+		switchers.addIfAbsent(switcher);
+		// it was removed while still busy, keep using the same state
+		SwitcherState state = switcherStates.get(switcher);
+		if (state != null) {
+			synchronized(state) {
+				state.removed = false;
+			}
 		}
 	}
 	
 	public void removeSwitcher(MasterSwitcher switcher) {
-		if (switchers.contains(switcher)) {
-			synchronized(switchers) {
-				switchers.remove(switcher);
+		switchers.remove(switcher);
+		SwitcherState state = switcherStates.get(switcher);
+		if (state != null) {
+			synchronized(state) {
+				state.removed = true;
+				state.pending = null;
+				// a running switcher drops the state itself once it is done
+				if (!state.running) {
+					switcherStates.remove(switcher, state);
+				}
 			}
 		}
 	}
@@ -132,17 +390,28 @@ public class ClusterArtifact extends JAXBArtifact<ClusterConfiguration> implemen
 							// this assumes the current environment has the required modules and the target environment has them as well!
 							((RemoteRepository) clusterRepository).setAllowLocalLookup(true);
 							((RemoteRepository) clusterRepository).setLocalLookupRegex(getConfig().getLocalLookupRegex());
+							configure((RemoteRepository) clusterRepository);
 							clusterRepository.start();
 						}
 						else if (getConfiguration().getHosts().size() > 0) {
 							// we take the first host
-							ServerConnection connection = getConnection(getConfiguration().getHosts().get(0));
+							final String host = getConfiguration().getHosts().get(0);
+							ServerConnection connection = getConnection(host);
 							URI root = connection.getRepositoryRoot();
 							if (mainURI.equals(root)) {
 								clusterRepository = EAIResourceRepository.getInstance();
 							}
 							else {
 								clusterRepository = new RemoteRepository(EAIResourceRepository.getInstance(), (ResourceContainer<?>) ResourceFactory.getInstance().resolve(root, connection.getPrincipal()));
+								configure((RemoteRepository) clusterRepository);
+								((RemoteRepository) clusterRepository).setRepositoryListing(new RepositoryListing() {
+									@Override
+									public Map<String, Date> list(String id) throws Exception {
+										return getListing(host, id);
+									}
+								});
+								// the snapshot is specific to the remote repository we connect to, it is kept in the work directory of this server rather than a shared temporary directory
+								((RemoteRepository) clusterRepository).setSnapshotFile(new File(new File(System.getProperty("user.dir"), "work/cluster"), getId() + "-" + Integer.toHexString(root.toString().hashCode()) + ".snapshot"));
 								clusterRepository.start();
 							}
 						}
@@ -156,6 +425,16 @@ public class ClusterArtifact extends JAXBArtifact<ClusterConfiguration> implemen
 		return clusterRepository;
 	}
 
+	private void configure(RemoteRepository repository) {
+		repository.setMetricsId(getId() + ":repository");
+		if (getConfig().getLoadParallelism() != null) {
+			repository.setLoadParallelism(getConfig().getLoadParallelism());
+		}
+		if (getConfig().getArtifactCacheSize() != null) {
+			repository.setArtifactCacheSize(getConfig().getArtifactCacheSize());
+		}
+	}
+
 	public ResourceContainer<?> getClusterContainer() {
 		try {
 			return getConfig().getUri() == null
@@ -192,21 +471,14 @@ public class ClusterArtifact extends JAXBArtifact<ClusterConfiguration> implemen
 			if (found && !connections.containsKey(host)) {
 				synchronized(connections) {
 					if (!connections.containsKey(host)) {
-						int index = host.indexOf(':');
 						// TODO: perhaps set keystore & principal?
 						ServerConnection connection;
 						try {
-							connection = new ServerConnection(getConfig().getSecure() != null && getConfig().getSecure() ? SSLContext.getDefault() : null, null, index < 0 ? host : host.substring(0, index), index < 0 ? (getConfig().getSecure() ? 443 : 5555) : Integer.parseInt(host.substring(index + 1)), getConfig().getSecure() != null && getConfig().getSecure(), getConfig().getPath() == null ? "" : URIUtils.encodeURI(getConfig().getPath()));
+							connection = newConnection(host, null);
 						}
 						catch (Exception e) {
 							throw new RuntimeException(e);
 						}
-						if (getConfig().getConnectionTimeout() != null) {
-							connection.setConnectionTimeout(getConfig().getConnectionTimeout());
-						}
-						if (getConfig().getSocketTimeout() != null) {
-							connection.setSocketTimeout(getConfig().getSocketTimeout());
-						}
 						connections.put(host, connection);
 					}
 				}
@@ -216,68 +488,455 @@ public class ClusterArtifact extends JAXBArtifact<ClusterConfiguration> implemen
 	}
 	
 	public void reloadAll() {
-		try {
-			if (getConfiguration().getHosts() != null) {
-				for (String host : getConfiguration().getHosts()) {
-					logger.info("Reloading all on " + host);
-					try {
-						int index = host.indexOf(':');
-						ServerConnection connection = new ServerConnection(getConfig().getSecure() != null && getConfig().getSecure() ? SSLContext.getDefault() : null, null, index < 0 ? host : host.substring(0, index), index < 0 ? (getConfig().getSecure() ? 443 : 5555) : Integer.parseInt(host.substring(index + 1)), getConfig().getSecure() != null && getConfig().getSecure(), getConfig().getPath() == null ? "" : URIUtils.encodeURI(getConfig().getPath()));
-						connection.getRemote().reloadAll();
+		// a full reload covers anything that is still queued
+		synchronized(pendingReloads) {
+			pendingReloads.clear();
+		}
+		for (ClusterHostResult result : reloadAllOnHosts()) {
+			if (!result.isSuccess()) {
+				logger.error("Could not reload all on server: " + result.getHost(), result.getException());
+			}
+		}
+	}
+	
+	public void reload(String id) {
+		if (getConfig().getReloadDebounce() != null && getConfig().getReloadDebounce() > 0) {
+			queueReload(id);
+		}
+		else {
+			for (ClusterHostResult result : reloadOnHosts(id)) {
+				if (!result.isSuccess()) {
+					logger.error("Could not reload '" + id + "' on server: " + result.getHost(), result.getException());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Queues the id for reloading, all the ids that are queued within the debounce window are sent as a single batch per host
+	 */
+	public void queueReload(String id) {
+		synchronized(pendingReloads) {
+			pendingReloads.add(id);
+			if (pendingFlush == null) {
+				long debounce = getConfig().getReloadDebounce() == null ? 0 : getConfig().getReloadDebounce();
+				pendingFlush = getScheduler().schedule(new Runnable() {
+					@Override
+					public void run() {
+						for (ClusterHostResult result : flushReloads()) {
+							if (!result.isSuccess()) {
+								logger.error("Could not reload batch on server: " + result.getHost(), result.getException());
+							}
+						}
 					}
-					catch (Exception e) {
-						logger.error("Could not reload all on server: " + host, e);
+				}, debounce, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	/**
+	 * Immediately sends all the queued reloads to the hosts
+	 */
+	public List<ClusterHostResult> flushReloads() {
+		final List<String> ids;
+		synchronized(pendingReloads) {
+			if (pendingFlush != null) {
+				pendingFlush.cancel(false);
+				pendingFlush = null;
+			}
+			ids = coalesce(pendingReloads);
+			pendingReloads.clear();
+		}
+		if (ids.isEmpty()) {
+			return new ArrayList<ClusterHostResult>();
+		}
+		return execute(new HostAction() {
+			@Override
+			public Object execute(String host, ServerConnection connection) throws Exception {
+				logger.info("Reloading " + ids + " on " + host);
+				// a single round trip per host for the whole batch
+				invoke(connection, "nabu.misc.cluster.Services.reloadDelta", "ids", ids);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Compares the content of the given entry (or the entire repository if null) with what each host has loaded and only reloads the entries that differ.
+	 * This assumes the hosts read from the same content as this server (e.g. a shared repository), the output of each host result is the list of reloaded ids.
+	 */
+	public List<ClusterHostResult> synchronize(final String id) throws IOException {
+		Entry entry = id == null ? getRepository().getRoot() : getRepository().getEntry(id);
+		if (entry == null) {
+			throw new IllegalArgumentException("Could not find entry: " + id);
+		}
+		final Map<String, String> local = RepositoryManifest.calculate(entry);
+		return execute(getConfig().getHosts(), new HostAction() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Object execute(String host, ServerConnection connection) throws Exception {
+				Map<String, String> remote = new HashMap<String, String>();
+				ComplexContent output = invoke(connection, "nabu.misc.cluster.Services.getManifest", "entryId", id);
+				Collection<Object> manifest = output == null ? null : (Collection<Object>) output.get("manifest");
+				if (manifest != null) {
+					for (Object single : manifest) {
+						ComplexContent content = single instanceof ComplexContent ? (ComplexContent) single : ComplexContentWrapperFactory.getInstance().getWrapper().wrap(single);
+						remote.put((String) content.get("id"), (String) content.get("hash"));
 					}
 				}
+				Set<String> changed = new HashSet<String>();
+				for (Map.Entry<String, String> hash : local.entrySet()) {
+					if (!hash.getValue().equals(remote.get(hash.getKey()))) {
+						changed.add(hash.getKey());
+					}
+				}
+				// removed entries
+				for (String remoteId : remote.keySet()) {
+					if (!local.containsKey(remoteId)) {
+						changed.add(remoteId);
+					}
+				}
+				List<String> ids = coalesce(changed);
+				if (!ids.isEmpty()) {
+					logger.info("Synchronizing " + ids + " on " + host);
+					invoke(connection, "nabu.misc.cluster.Services.reloadDelta", "ids", ids);
+				}
+				return ids;
+			}
+		}, getConfig().getReloadTimeout());
+	}
+	
+	/**
+	 * Lists the given entry (or the entire repository if null) on the host in a single call
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, Date> getListing(String host, String id) throws Exception {
+		Map<String, Date> listing = new LinkedHashMap<String, Date>();
+		ComplexContent output = invoke(getConnection(host), "nabu.misc.cluster.Services.getListing", "entryId", id);
+		Collection<Object> entries = output == null ? null : (Collection<Object>) output.get("listing");
+		if (entries != null) {
+			for (Object single : entries) {
+				ComplexContent content = single instanceof ComplexContent ? (ComplexContent) single : ComplexContentWrapperFactory.getInstance().getWrapper().wrap(single);
+				listing.put((String) content.get("id"), (Date) content.get("lastModified"));
 			}
 		}
-		catch (Exception e) {
-			throw new RuntimeException(e);
+		return listing;
+	}
+	
+	/**
+	 * Runs a service (which must be available on both servers) on the remote server
+	 */
+	private ComplexContent invoke(ServerConnection connection, String serviceId, String field, Object value) throws Exception {
+		DefinedService service = DefinedServiceResolverFactory.getInstance().getResolver().resolve(serviceId);
+		if (service == null) {
+			throw new IllegalStateException("Could not find service: " + serviceId);
+		}
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		if (value != null) {
+			input.set(field, value);
 		}
+		ServiceResult result = connection.getRemote().run(service, getRepository().newExecutionContext(SystemPrincipal.ROOT), input).get();
+		if (result.getException() != null) {
+			throw result.getException();
+		}
+		return result.getOutput();
 	}
 	
-	public void reload(String id) {
-		try {
-			if (getConfiguration().getHosts() != null) {
-				for (String host : getConfiguration().getHosts()) {
-					logger.info("Reloading " + id + " on " + host);
+	/**
+	 * Removes all the ids that are already covered by the reload of a parent id
+	 */
+	static List<String> coalesce(Collection<String> ids) {
+		// in sorted order a parent always comes before its children
+		Set<String> result = new LinkedHashSet<String>();
+		for (String id : new TreeSet<String>(ids)) {
+			String parent = id;
+			boolean covered = false;
+			while (!covered && parent.contains(".")) {
+				parent = parent.substring(0, parent.lastIndexOf('.'));
+				covered = result.contains(parent);
+			}
+			if (!covered) {
+				result.add(id);
+			}
+		}
+		return new ArrayList<String>(result);
+	}
+	
+	public List<ClusterHostResult> reloadAllOnHosts() {
+		return execute(new HostAction() {
+			@Override
+			public Object execute(String host, ServerConnection connection) throws Exception {
+				logger.info("Reloading all on " + host);
+				connection.getRemote().reloadAll();
+				return null;
+			}
+		});
+	}
+	
+	public List<ClusterHostResult> reloadOnHosts(final String id) {
+		return execute(new HostAction() {
+			@Override
+			public Object execute(String host, ServerConnection connection) throws Exception {
+				logger.info("Reloading " + id + " on " + host);
+				connection.getRemote().reload(id);
+				return null;
+			}
+		});
+	}
+	
+	private List<ClusterHostResult> execute(HostAction action) {
+		return execute(getConfig().getHosts(), action, getConfig().getReloadTimeout());
+	}
+	
+	/**
+	 * Executes the action on the given hosts in parallel, the result list is in the same order as the hosts
+	 * The timeout (in milliseconds) is applied per host, starting from the moment the host is actually picked up
+	 */
+	public List<ClusterHostResult> execute(List<String> hosts, final HostAction action, Long timeout) {
+		return execute(hosts, action, timeout, false);
+	}
+	
+	/**
+	 * By default the timeout applies to each host separately, starting when the action is actually started for that host.
+	 * With a global deadline the timeout applies to the call as a whole, hosts that have not responded by then (or were not even started) time out.
+	 */
+	public List<ClusterHostResult> execute(List<String> hosts, final HostAction action, Long timeout, boolean globalDeadline) {
+		return execute(getExecutor(), hosts, action, timeout, globalDeadline);
+	}
+	
+	private List<ClusterHostResult> execute(ExecutorService executor, List<String> hosts, final HostAction action, final Long timeout, boolean globalDeadline) {
+		long deadline = timeout == null ? 0 : System.currentTimeMillis() + timeout;
+		List<ClusterHostResult> results = new ArrayList<ClusterHostResult>();
+		if (hosts == null || hosts.isEmpty()) {
+			return results;
+		}
+		List<Future<ClusterHostResult>> futures = new ArrayList<Future<ClusterHostResult>>();
+		List<AtomicLong> started = new ArrayList<AtomicLong>();
+		for (final String host : hosts) {
+			final AtomicLong start = new AtomicLong(0);
+			started.add(start);
+			futures.add(executor.submit(new Callable<ClusterHostResult>() {
+				@Override
+				public ClusterHostResult call() {
+					start.set(System.currentTimeMillis());
+					ClusterHostResult result = new ClusterHostResult(host);
 					try {
-						int index = host.indexOf(':');
-						ServerConnection connection = new ServerConnection(getConfig().getSecure() != null && getConfig().getSecure() ? SSLContext.getDefault() : null, null, index < 0 ? host : host.substring(0, index), index < 0 ? (getConfig().getSecure() ? 443 : 5555) : Integer.parseInt(host.substring(index + 1)), getConfig().getSecure() != null && getConfig().getSecure(), getConfig().getPath() == null ? "" : URIUtils.encodeURI(getConfig().getPath()));
-						connection.getRemote().reload(id);
+						result.setOutput(action.execute(host, newConnection(host, timeout)));
+						result.setSuccess(true);
 					}
 					catch (Exception e) {
-						logger.error("Could not reload '" + id + "' on server: " + host, e);
+						result.setException(e);
+					}
+					result.setDuration(System.currentTimeMillis() - start.get());
+					return result;
+				}
+			}));
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			String host = hosts.get(i);
+			try {
+				if (timeout == null) {
+					results.add(futures.get(i).get());
+				}
+				else {
+					// the deadline for each host starts when it is actually picked up by the executor
+					while (true) {
+						long start = started.get(i).get();
+						long remaining = globalDeadline
+							? deadline - System.currentTimeMillis()
+							: (start == 0 ? System.currentTimeMillis() : start) + timeout - System.currentTimeMillis();
+						try {
+							results.add(futures.get(i).get(Math.max(remaining, 0), TimeUnit.MILLISECONDS));
+							break;
+						}
+						catch (TimeoutException e) {
+							if (start != 0 || globalDeadline) {
+								futures.get(i).cancel(true);
+								ClusterHostResult result = new ClusterHostResult(host);
+								result.setDuration(start == 0 ? 0 : System.currentTimeMillis() - start);
+								result.setException(new TimeoutException("Host '" + host + "' did not respond within " + timeout + "ms"));
+								results.add(result);
+								break;
+							}
+						}
 					}
 				}
 			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			catch (ExecutionException e) {
+				ClusterHostResult result = new ClusterHostResult(host);
+				result.setException(e);
+				results.add(result);
+			}
 		}
-		catch (Exception e) {
-			throw new RuntimeException(e);
+		return results;
+	}
+	
+	private ExecutorService getExecutor() {
+		if (executor == null) {
+			synchronized(this) {
+				if (executor == null) {
+					int parallelism = getConfig().getReloadParallelism() != null && getConfig().getReloadParallelism() > 0
+						? getConfig().getReloadParallelism()
+						: Math.max(1, getConfig().getHosts() == null ? 1 : getConfig().getHosts().size());
+					ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("cluster-" + getId()));
+					// don't keep idle threads around, reloads are rare
+					executor.allowCoreThreadTimeOut(true);
+					this.executor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+	
+	private ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			synchronized(this) {
+				if (scheduler == null) {
+					scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cluster-" + getId() + "-scheduler"));
+				}
+			}
+		}
+		return scheduler;
+	}
+	
+	private ExecutorService getResolver() {
+		if (resolver == null) {
+			synchronized(this) {
+				if (resolver == null) {
+					resolver = Executors.newSingleThreadExecutor(new DaemonThreadFactory("cluster-" + getId() + "-resolver"));
+				}
+			}
+		}
+		return resolver;
+	}
+	
+	// the lookups of the names themselves, one thread per host at most
+	private ExecutorService getLookups() {
+		if (lookups == null) {
+			synchronized(this) {
+				if (lookups == null) {
+					int parallelism = Math.max(1, getConfig().getHosts() == null ? 1 : getConfig().getHosts().size());
+					ThreadPoolExecutor lookups = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("cluster-" + getId() + "-lookup"));
+					lookups.allowCoreThreadTimeOut(true);
+					this.lookups = lookups;
+				}
+			}
+		}
+		return lookups;
+	}
+	
+	/**
+	 * If there is no socket timeout configured, the timeout of the action (if any) is used so a hung host can not block a thread indefinitely
+	 */
+	private ServerConnection newConnection(String host, Long timeout) throws Exception {
+		int index = host.indexOf(':');
+		boolean secure = getConfig().getSecure() != null && getConfig().getSecure();
+		ServerConnection connection = new ServerConnection(secure ? SSLContext.getDefault() : null, null, index < 0 ? host : host.substring(0, index), index < 0 ? (secure ? 443 : 5555) : Integer.parseInt(host.substring(index + 1)), secure, getConfig().getPath() == null ? "" : URIUtils.encodeURI(getConfig().getPath()));
+		if (getConfig().getConnectionTimeout() != null) {
+			connection.setConnectionTimeout(getConfig().getConnectionTimeout());
+		}
+		if (getConfig().getSocketTimeout() != null) {
+			connection.setSocketTimeout(getConfig().getSocketTimeout());
 		}
+		else if (timeout != null) {
+			connection.setSocketTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+		}
+		return connection;
 	}
 	
+	/**
+	 * Returns the names of the hosts that could be resolved.
+	 * Only hosts that have never been resolved are waited on (within a timeout), expired names are refreshed in the background while the old value is returned.
+	 */
 	public Map<String, String> getHostNames() {
-		if (getConfig().getHosts() != null) {
-			if (hostNames.size() != getConfig().getHosts().size()) {
-				synchronized(hostNames) {
-					if (hostNames.size() != getConfig().getHosts().size()) {
+		Map<String, String> result = new HashMap<String, String>();
+		List<String> hosts = getConfig().getHosts();
+		if (hosts != null) {
+			boolean unknown = false, expired = false;
+			long now = System.currentTimeMillis();
+			for (String host : hosts) {
+				HostName name = hostNames.get(host);
+				if (name == null) {
+					unknown = true;
+				}
+				else if (name.expires < now) {
+					expired = true;
+				}
+			}
+			if (unknown || expired) {
+				Future<?> refresh = refreshHostNames();
+				if (unknown) {
+					try {
+						refresh.get(HOST_NAME_TIMEOUT, TimeUnit.MILLISECONDS);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					catch (Exception e) {
+						logger.debug("Could not resolve all host names in time", e);
+					}
+				}
+			}
+			for (String host : hosts) {
+				HostName name = hostNames.get(host);
+				if (name != null && name.name != null) {
+					result.put(host, name.name);
+				}
+			}
+		}
+		return result;
+	}
+	
+	private Future<?> refreshHostNames() {
+		synchronized(hostNames) {
+			if (hostNameRefresh == null || hostNameRefresh.isDone()) {
+				hostNameRefresh = getResolver().submit(new Runnable() {
+					@Override
+					public void run() {
+						List<String> toResolve = new ArrayList<String>();
+						long now = System.currentTimeMillis();
 						for (String host : getConfig().getHosts()) {
-							if (!hostNames.containsKey(host)) {
-								try {
-									ServerConnection connection = getConnection(host, false);
-									hostNames.put(host, connection.getName());
-								}
-								catch (Exception e) {
-									logger.debug("Could not resolve host name", e);
-								}
+							HostName name = hostNames.get(host);
+							if (name == null || name.expires < now) {
+								toResolve.add(host);
+							}
+						}
+						// the connection of the action times out, a host that accepts the connection but never answers can not hold on to a thread
+						List<ClusterHostResult> results = execute(getLookups(), toResolve, new HostAction() {
+							@Override
+							public Object execute(String host, ServerConnection connection) throws Exception {
+								return connection.getName();
 							}
+						}, HOST_NAME_TIMEOUT, true);
+						for (ClusterHostResult result : results) {
+							HostName name = new HostName();
+							if (result.isSuccess() && result.getOutput() != null) {
+								name.name = (String) result.getOutput();
+								name.expires = System.currentTimeMillis() + (getConfig().getHostNameTtl() == null ? HOST_NAME_TTL : getConfig().getHostNameTtl());
+							}
+							else {
+								// keep the last known name (if any) but try again sooner
+								HostName previous = hostNames.get(result.getHost());
+								name.name = previous == null ? null : previous.name;
+								name.expires = System.currentTimeMillis() + HOST_NAME_FAILURE_TTL;
+								logger.debug("Could not resolve host name for: " + result.getHost(), result.getException());
+							}
+							hostNames.put(result.getHost(), name);
 						}
 					}
-				}
+				});
 			}
+			return hostNameRefresh;
 		}
-		return new HashMap<String, String>(hostNames);
+	}
+	
+	private static class HostName {
+		private String name;
+		private long expires;
 	}
 
 	public BullyClient getBullyClient() {
@@ -27,7 +27,7 @@ import be.nabu.eai.api.Comment;
 import be.nabu.eai.api.EnvironmentSpecific;
 
 @XmlRootElement(name = "cluster")
-@XmlType(propOrder = { "sharedRepository", "hosts", "path", "simulate", "uri", "connectionTimeout", "socketTimeout", "localLookupRegex", "secure" })
+@XmlType(propOrder = { "sharedRepository", "hosts", "path", "simulate", "uri", "connectionTimeout", "socketTimeout", "localLookupRegex", "secure", "reloadParallelism", "reloadTimeout", "reloadDebounce", "hostNameTtl", "switcherTimeout", "masterLeaseDuration", "electionTimeout", "heartbeatInterval", "heartbeatAcceptablePause", "phiThreshold", "loadParallelism", "artifactCacheSize", "balancerMaxInFlight", "asyncMaxOutstanding", "binaryPayloads" })
 public class ClusterConfiguration {
 	/**
 	 * The uri where the simulation data (if any) is stored
@@ -38,7 +38,10 @@ public class ClusterConfiguration {
 	private Boolean sharedRepository;
 	private Integer connectionTimeout, socketTimeout;
 	private String localLookupRegex, path;
-	private Boolean secure;
+	private Boolean secure, binaryPayloads;
+	private Integer reloadParallelism, loadParallelism, artifactCacheSize, balancerMaxInFlight, asyncMaxOutstanding;
+	private Long reloadTimeout, reloadDebounce, hostNameTtl, switcherTimeout, masterLeaseDuration, electionTimeout, heartbeatInterval, heartbeatAcceptablePause;
+	private Double phiThreshold;
 	
 	@EnvironmentSpecific
 	public List<String> getHosts() {
@@ -98,4 +101,109 @@ public class ClusterConfiguration {
 	public void setPath(String path) {
 		this.path = path;
 	}
+	@Comment(title = "The maximum amount of hosts that are reloaded at the same time, by default all hosts are reloaded in parallel")
+	public Integer getReloadParallelism() {
+		return reloadParallelism;
+	}
+	public void setReloadParallelism(Integer reloadParallelism) {
+		this.reloadParallelism = reloadParallelism;
+	}
+	@Comment(title = "How long (in milliseconds) we wait for a single host to finish a reload, by default we wait indefinitely")
+	public Long getReloadTimeout() {
+		return reloadTimeout;
+	}
+	public void setReloadTimeout(Long reloadTimeout) {
+		this.reloadTimeout = reloadTimeout;
+	}
+	@Comment(title = "If set, reloads are collected for this many milliseconds and sent as a single batch per host")
+	public Long getReloadDebounce() {
+		return reloadDebounce;
+	}
+	public void setReloadDebounce(Long reloadDebounce) {
+		this.reloadDebounce = reloadDebounce;
+	}
+	@Comment(title = "How long (in milliseconds) the resolved names of the hosts are cached, defaults to 5 minutes")
+	public Long getHostNameTtl() {
+		return hostNameTtl;
+	}
+	public void setHostNameTtl(Long hostNameTtl) {
+		this.hostNameTtl = hostNameTtl;
+	}
+	@Comment(title = "How long (in milliseconds) a master switcher can take before it is reported as slow, switchers are notified independently of one another, defaults to 30 seconds")
+	public Long getSwitcherTimeout() {
+		return switcherTimeout;
+	}
+	public void setSwitcherTimeout(Long switcherTimeout) {
+		this.switcherTimeout = switcherTimeout;
+	}
+	@Comment(title = "How long (in milliseconds) the outcome of an election is trusted before it is checked again, defaults to 5 seconds")
+	public Long getMasterLeaseDuration() {
+		return masterLeaseDuration;
+	}
+	public void setMasterLeaseDuration(Long masterLeaseDuration) {
+		this.masterLeaseDuration = masterLeaseDuration;
+	}
+	@Comment(title = "How long (in milliseconds) the election process waits for other servers, defaults to 60 seconds")
+	public Long getElectionTimeout() {
+		return electionTimeout;
+	}
+	public void setElectionTimeout(Long electionTimeout) {
+		this.electionTimeout = electionTimeout;
+	}
+	@Comment(title = "How often (in milliseconds) a heartbeat is sent to the other servers, defaults to 1 second")
+	public Long getHeartbeatInterval() {
+		return heartbeatInterval;
+	}
+	public void setHeartbeatInterval(Long heartbeatInterval) {
+		this.heartbeatInterval = heartbeatInterval;
+	}
+	@Comment(title = "How long (in milliseconds) heartbeats can be missing without raising suspicion (e.g. because of garbage collection), defaults to 3 seconds")
+	public Long getHeartbeatAcceptablePause() {
+		return heartbeatAcceptablePause;
+	}
+	public void setHeartbeatAcceptablePause(Long heartbeatAcceptablePause) {
+		this.heartbeatAcceptablePause = heartbeatAcceptablePause;
+	}
+	@Comment(title = "The suspicion level at which the master is considered down and a new election is started, defaults to 8")
+	public Double getPhiThreshold() {
+		return phiThreshold;
+	}
+	public void setPhiThreshold(Double phiThreshold) {
+		this.phiThreshold = phiThreshold;
+	}
+	@Comment(title = "How many threads are used to load the remote repository, defaults to the amount of processors")
+	public Integer getLoadParallelism() {
+		return loadParallelism;
+	}
+	public void setLoadParallelism(Integer loadParallelism) {
+		this.loadParallelism = loadParallelism;
+	}
+	@Comment(title = "How many remote artifacts are kept in memory, older ones can be reclaimed by the garbage collector and are parsed again when needed, defaults to 1000")
+	public Integer getArtifactCacheSize() {
+		return artifactCacheSize;
+	}
+	public void setArtifactCacheSize(Integer artifactCacheSize) {
+		this.artifactCacheSize = artifactCacheSize;
+	}
+	@Comment(title = "How many balanced calls can be running on a single peer before it is considered saturated, defaults to 32")
+	public Integer getBalancerMaxInFlight() {
+		return balancerMaxInFlight;
+	}
+	public void setBalancerMaxInFlight(Integer balancerMaxInFlight) {
+		this.balancerMaxInFlight = balancerMaxInFlight;
+	}
+	@Comment(title = "How many asynchronous calls can be outstanding per host, new calls are refused beyond that, defaults to 50")
+	public Integer getAsyncMaxOutstanding() {
+		return asyncMaxOutstanding;
+	}
+	public void setAsyncMaxOutstanding(Integer asyncMaxOutstanding) {
+		this.asyncMaxOutstanding = asyncMaxOutstanding;
+	}
+	@Comment(title = "Whether remote invocations to hosts of this cluster use a compact binary encoding when both servers support it, content that can not be encoded falls back to the regular format")
+	public Boolean getBinaryPayloads() {
+		return binaryPayloads;
+	}
+	public void setBinaryPayloads(Boolean binaryPayloads) {
+		this.binaryPayloads = binaryPayloads;
+	}
 }
@@ -0,0 +1,204 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import be.nabu.libs.events.api.EventHandler;
+import be.nabu.libs.http.api.HTTPRequest;
+import be.nabu.libs.http.api.HTTPResponse;
+import be.nabu.libs.http.client.DefaultHTTPClient;
+import be.nabu.libs.http.client.SPIAuthenticationHandler;
+import be.nabu.libs.http.client.connections.PlainConnectionHandler;
+import be.nabu.libs.http.core.CustomCookieStore;
+import be.nabu.libs.http.core.DefaultHTTPRequest;
+import be.nabu.libs.http.core.DefaultHTTPResponse;
+import be.nabu.utils.bully.BullyClient;
+import be.nabu.utils.mime.api.Header;
+import be.nabu.utils.mime.impl.MimeHeader;
+import be.nabu.utils.mime.impl.MimeUtils;
+import be.nabu.utils.mime.impl.PlainMimeEmptyPart;
+
+/**
+ * Sends heartbeats to all the peers in the cluster and keeps a failure detector per peer.
+ * When the suspicion level for the current master crosses the threshold, a new election is scheduled instead of waiting for the (much slower) election timeout.
+ * The heartbeat responses also advertise the load of each server to the {@link PeerLoadBalancer}.
+ */
+public class ClusterHeartbeat {
+	
+	public static final long DEFAULT_INTERVAL = 1000;
+	public static final long DEFAULT_ACCEPTABLE_PAUSE = 3000;
+	public static final double DEFAULT_THRESHOLD = 8;
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private ClusterServerListener listener;
+	private String self;
+	private Map<String, PhiAccrualFailureDetector> detectors = new ConcurrentHashMap<String, PhiAccrualFailureDetector>();
+	private ScheduledExecutorService scheduler;
+	private volatile DefaultHTTPClient httpClient;
+	// the master we already scheduled an election for, to avoid triggering one on every heartbeat
+	private volatile String suspectedMaster;
+	private long interval, acceptablePause;
+	private double threshold;
+	private volatile PeerLoadBalancer loadBalancer;
+	
+	public ClusterHeartbeat(ClusterServerListener listener, String self) {
+		this.listener = listener;
+		this.self = self;
+	}
+	
+	/**
+	 * Starts sending heartbeats based on the current configuration of the cluster, it can be restarted after a stop to pick up a new configuration
+	 */
+	public synchronized void start() {
+		ClusterConfiguration config = listener.getCluster().getConfig();
+		interval = config.getHeartbeatInterval() == null ? DEFAULT_INTERVAL : config.getHeartbeatInterval();
+		acceptablePause = config.getHeartbeatAcceptablePause() == null ? DEFAULT_ACCEPTABLE_PAUSE : config.getHeartbeatAcceptablePause();
+		threshold = config.getPhiThreshold() == null ? DEFAULT_THRESHOLD : config.getPhiThreshold();
+		closeClient();
+		// a heartbeat that takes longer than the acceptable pause is of no use
+		int timeout = (int) Math.max(interval, acceptablePause);
+		httpClient = new DefaultHTTPClient(new PlainConnectionHandler(null, timeout, timeout), new SPIAuthenticationHandler(), new CookieManager(new CustomCookieStore(), CookiePolicy.ACCEPT_ALL), false);
+		// an advertised load is stale if we missed a few heartbeats
+		loadBalancer = new PeerLoadBalancer(this, self, config.getBalancerMaxInFlight() == null ? PeerLoadBalancer.DEFAULT_MAX_IN_FLIGHT : config.getBalancerMaxInFlight(), Math.max(interval * 3, acceptablePause));
+		List<String> peers = new ArrayList<String>(config.getHosts());
+		peers.remove(self);
+		scheduler = Executors.newScheduledThreadPool(Math.max(1, peers.size()), new DaemonThreadFactory("cluster-heartbeat"));
+		long started = System.currentTimeMillis();
+		for (final String peer : peers) {
+			// a peer that is down from the start is suspected once it misses the heartbeats we expect of it
+			detectors.put(peer, new PhiAccrualFailureDetector(interval, acceptablePause, interval / 4, started));
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					beat(peer);
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+		logger.info("Sending heartbeats to " + peers + " every " + interval + "ms");
+	}
+	
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		// the peers may be different when we start again
+		detectors.clear();
+		suspectedMaster = null;
+		loadBalancer = null;
+		closeClient();
+	}
+	
+	private void closeClient() {
+		if (httpClient != null) {
+			try {
+				httpClient.close();
+			}
+			catch (IOException e) {
+				logger.debug("Could not close the heartbeat client", e);
+			}
+			httpClient = null;
+		}
+	}
+	
+	public double getPhi(String host) {
+		PhiAccrualFailureDetector detector = detectors.get(host);
+		return detector == null ? 0 : detector.phi(System.currentTimeMillis());
+	}
+	
+	public boolean isSuspected(String host) {
+		return getPhi(host) > threshold;
+	}
+	
+	public PeerLoadBalancer getLoadBalancer() {
+		return loadBalancer;
+	}
+	
+	private void beat(String peer) {
+		// a concurrent stop clears all of these, the heartbeat is simply skipped
+		PhiAccrualFailureDetector detector = detectors.get(peer);
+		PeerLoadBalancer loadBalancer = this.loadBalancer;
+		DefaultHTTPClient httpClient = this.httpClient;
+		if (detector == null || loadBalancer == null || httpClient == null) {
+			return;
+		}
+		try {
+			HTTPResponse response = httpClient.execute(new DefaultHTTPRequest("GET", "/cluster/heartbeat", new PlainMimeEmptyPart(null,
+				new MimeHeader("Host", peer),
+				new MimeHeader("Content-Length", "0")
+			)), null, false, false);
+			if (response.getCode() == 200) {
+				detector.heartbeat(System.currentTimeMillis());
+				Header header = response.getContent() == null ? null : MimeUtils.getHeader(PeerLoadBalancer.LOAD_HEADER, response.getContent().getHeaders());
+				if (header != null && header.getValue() != null) {
+					loadBalancer.setAdvertisedLoad(peer, Double.parseDouble(header.getValue()));
+				}
+				if (peer.equals(suspectedMaster)) {
+					suspectedMaster = null;
+				}
+			}
+		}
+		catch (Exception e) {
+			logger.debug("Heartbeat to " + peer + " failed", e);
+		}
+		check(peer, detector);
+	}
+	
+	private void check(String peer, PhiAccrualFailureDetector detector) {
+		ClusterArtifact cluster = listener.getCluster();
+		BullyClient bullyClient = listener.getBullyClient();
+		if (cluster == null || bullyClient == null || !peer.equals(cluster.getMaster()) || peer.equals(suspectedMaster)) {
+			return;
+		}
+		double phi = detector.phi(System.currentTimeMillis());
+		if (phi > threshold) {
+			logger.warn("Master " + peer + " is suspected to be down (phi " + phi + "), scheduling an election");
+			suspectedMaster = peer;
+			bullyClient.scheduleElection(true);
+		}
+	}
+	
+	public EventHandler<HTTPRequest, HTTPResponse> newHandler() {
+		return new EventHandler<HTTPRequest, HTTPResponse>() {
+			@Override
+			public HTTPResponse handle(HTTPRequest event) {
+				double load = PeerLoadBalancer.getLocalLoad();
+				if (load < 0) {
+					return new DefaultHTTPResponse(200, "OK", new PlainMimeEmptyPart(null, new MimeHeader("Content-Length", "0")));
+				}
+				return new DefaultHTTPResponse(200, "OK", new PlainMimeEmptyPart(null, 
+					new MimeHeader("Content-Length", "0"),
+					new MimeHeader(PeerLoadBalancer.LOAD_HEADER, Double.toString(load))
+				));
+			}
+		};
+	}
+}
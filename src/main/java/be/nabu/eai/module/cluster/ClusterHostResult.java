@@ -0,0 +1,76 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+/**
+ * The outcome of an action that was executed on a single host of the cluster
+ */
+public class ClusterHostResult {
+	private String host;
+	private boolean success;
+	private long duration;
+	private Exception exception;
+	private Object output;
+	
+	public ClusterHostResult() {
+		// auto construct
+	}
+	
+	public ClusterHostResult(String host) {
+		this.host = host;
+	}
+	
+	public String getHost() {
+		return host;
+	}
+	public void setHost(String host) {
+		this.host = host;
+	}
+	public boolean isSuccess() {
+		return success;
+	}
+	public void setSuccess(boolean success) {
+		this.success = success;
+	}
+	/**
+	 * The duration in milliseconds
+	 */
+	public long getDuration() {
+		return duration;
+	}
+	public void setDuration(long duration) {
+		this.duration = duration;
+	}
+	public Exception getException() {
+		return exception;
+	}
+	public void setException(Exception exception) {
+		this.exception = exception;
+	}
+	public Object getOutput() {
+		return output;
+	}
+	public void setOutput(Object output) {
+		this.output = output;
+	}
+	
+	@Override
+	public String toString() {
+		return host + " [" + (success ? "succeeded" : "failed") + " in " + duration + "ms]";
+	}
+}
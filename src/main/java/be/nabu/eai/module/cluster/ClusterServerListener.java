@@ -47,6 +47,7 @@ public class ClusterServerListener implements ServerListener {
 	private Logger logger = LoggerFactory.getLogger(getClass());
 	private BullyClient bullyClient;
 	private ClusterArtifact cluster;
+	private ClusterHeartbeat heartbeat;
 	
 	private static ClusterServerListener instance;
 	
@@ -60,6 +61,8 @@ public class ClusterServerListener implements ServerListener {
 			cluster = Services.getOwnCluster(server.getRepository().newExecutionContext(SystemPrincipal.ROOT));
 			// only need to care if we are actually in a cluster
 			if (cluster != null) {
+				// the repository is loaded at this point, from now on we track what is reloaded so peers can synchronize with us
+				RepositoryManifest.getInstance().start(server.getRepository());
 				logger.info("Part of cluster '" + cluster.getId() + "' with " + cluster.getConfig().getHosts().size() + " hosts");
 				// only interesting if the cluster actually has more than one host
 				if (cluster.getConfig().getHosts().size() > 1) {
@@ -69,7 +72,8 @@ public class ClusterServerListener implements ServerListener {
 					}
 					else {
 						logger.info("Identity within cluster: " + self);
-						DefaultHTTPClient httpClient = new DefaultHTTPClient(new PlainConnectionHandler(null, 60*1000, 60*1000*2), new SPIAuthenticationHandler(), new CookieManager(new CustomCookieStore(), CookiePolicy.ACCEPT_ALL), false);
+						ClusterConfiguration config = cluster.getConfig();
+						DefaultHTTPClient httpClient = new DefaultHTTPClient(new PlainConnectionHandler(null, config.getConnectionTimeout() == null ? 60*1000 : config.getConnectionTimeout(), config.getSocketTimeout() == null ? 60*1000*2 : config.getSocketTimeout()), new SPIAuthenticationHandler(), new CookieManager(new CustomCookieStore(), CookiePolicy.ACCEPT_ALL), false);
 						bullyClient = new BullyClient(self, "/cluster", new MasterController() {
 							@Override
 							public void setMaster(String master) {
@@ -77,15 +81,20 @@ public class ClusterServerListener implements ServerListener {
 									getCluster().setMaster(master);
 								}
 							}
-						}, 60l*1000, httpClient, null, false, cluster.getConfig().getHosts());
+						}, cluster.getConfig().getElectionTimeout() == null ? 60l*1000 : cluster.getConfig().getElectionTimeout(), httpClient, null, false, cluster.getConfig().getHosts());
 						cluster.setBullyClient(bullyClient);
 						// register the listener
 						EventSubscription<HTTPRequest, HTTPResponse> subscribe = httpServer.getDispatcher().subscribe(HTTPRequest.class, bullyClient.newHandler());
 						subscribe.filter(HTTPServerUtils.limitToPath("/cluster/bully"));
+						// the heartbeats allow us to detect a failing master long before the election times out
+						heartbeat = new ClusterHeartbeat(this, self);
+						EventSubscription<HTTPRequest, HTTPResponse> heartbeatSubscription = httpServer.getDispatcher().subscribe(HTTPRequest.class, heartbeat.newHandler());
+						heartbeatSubscription.filter(HTTPServerUtils.limitToPath("/cluster/heartbeat"));
 						// start elections!
 						bullyClient.scheduleElection(true);
 						// register this instance so we can access it statically
 						instance = this;
+						heartbeat.start();
 					}
 				}
 			}
@@ -116,11 +125,19 @@ public class ClusterServerListener implements ServerListener {
 		return bullyClient;
 	}
 
+	public ClusterHeartbeat getHeartbeat() {
+		return heartbeat;
+	}
+
 	public ClusterArtifact getCluster() {
 		return cluster;
 	}
 
 	public void setCluster(ClusterArtifact cluster) {
+		// the heartbeats use the configuration of the cluster (peers, interval...), they have to be restarted for the new one
+		if (heartbeat != null) {
+			heartbeat.stop();
+		}
 		if (cluster != null) {
 			cluster.setBullyClient(bullyClient);
 			String currentMaster = bullyClient.getCurrentMaster();
@@ -129,6 +146,9 @@ public class ClusterServerListener implements ServerListener {
 			}
 		}
 		this.cluster = cluster;
+		if (cluster != null && heartbeat != null) {
+			heartbeat.start();
+		}
 	}
 	
 }
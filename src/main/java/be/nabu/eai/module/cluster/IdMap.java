@@ -0,0 +1,142 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A map of repository ids that is split in a fixed amount of buckets, everything below the same two levels of the tree ends up in the same bucket.
+ * A copy only shares the buckets with the original, a bucket is duplicated when the copy first modifies it.
+ * This means a change costs the size of its bucket instead of the size of the repository. Null values are not supported.
+ */
+class IdMap<V> {
+	
+	private static final int BUCKETS = 64;
+	
+	private TreeMap<String, V> [] buckets = newBuckets();
+	// the buckets that were created by this map and can be modified in place, the others are shared
+	private boolean [] owned = new boolean[BUCKETS];
+	private int size;
+	
+	@SuppressWarnings("unchecked")
+	private static <V> TreeMap<String, V> [] newBuckets() {
+		return new TreeMap[BUCKETS];
+	}
+	
+	public IdMap<V> copy() {
+		IdMap<V> copy = new IdMap<V>();
+		System.arraycopy(buckets, 0, copy.buckets, 0, BUCKETS);
+		copy.size = size;
+		// the buckets are shared from now on, so the original can no longer modify them in place either
+		owned = new boolean[BUCKETS];
+		return copy;
+	}
+	
+	private static int getBucket(String id) {
+		int index = id.indexOf('.');
+		if (index >= 0) {
+			index = id.indexOf('.', index + 1);
+		}
+		String prefix = index < 0 ? id : id.substring(0, index);
+		return (prefix.hashCode() & 0x7fffffff) % BUCKETS;
+	}
+	
+	private TreeMap<String, V> getOwnedBucket(int bucket) {
+		if (!owned[bucket]) {
+			buckets[bucket] = buckets[bucket] == null ? new TreeMap<String, V>() : new TreeMap<String, V>(buckets[bucket]);
+			owned[bucket] = true;
+		}
+		return buckets[bucket];
+	}
+	
+	public V get(String id) {
+		TreeMap<String, V> bucket = buckets[getBucket(id)];
+		return bucket == null ? null : bucket.get(id);
+	}
+	
+	public boolean containsKey(String id) {
+		return get(id) != null;
+	}
+	
+	public V put(String id, V value) {
+		V previous = getOwnedBucket(getBucket(id)).put(id, value);
+		if (previous == null) {
+			size++;
+		}
+		return previous;
+	}
+	
+	public V remove(String id) {
+		int bucket = getBucket(id);
+		if (buckets[bucket] == null || !buckets[bucket].containsKey(id)) {
+			return null;
+		}
+		size--;
+		return getOwnedBucket(bucket).remove(id);
+	}
+	
+	/**
+	 * Returns all the ids below the given id, the id itself not included
+	 */
+	public List<String> getChildren(String id) {
+		List<String> children = new ArrayList<String>();
+		// from the second level on the children are in the bucket of the id, above it they can be anywhere
+		if (id.indexOf('.') >= 0) {
+			addChildren(buckets[getBucket(id)], id, children);
+		}
+		else {
+			for (TreeMap<String, V> bucket : buckets) {
+				addChildren(bucket, id, children);
+			}
+		}
+		return children;
+	}
+	
+	private static void addChildren(TreeMap<String, ?> bucket, String id, List<String> children) {
+		if (bucket != null) {
+			// '/' is the character right after '.' so this covers every id that starts with the prefix
+			children.addAll(bucket.subMap(id + ".", id + "/").keySet());
+		}
+	}
+	
+	public void copyTo(Map<String, V> target) {
+		for (TreeMap<String, V> bucket : buckets) {
+			if (bucket != null) {
+				target.putAll(bucket);
+			}
+		}
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	// the buckets may be shared, so they are replaced rather than cleared
+	public void clear() {
+		buckets = newBuckets();
+		owned = new boolean[BUCKETS];
+		size = 0;
+	}
+}
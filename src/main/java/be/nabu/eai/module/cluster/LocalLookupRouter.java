@@ -0,0 +1,79 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which ids are allowed to fall back to the local repository and remembers which ids are known to be missing remotely
+ */
+class LocalLookupRouter {
+	
+	private static final int MAX_DECISIONS = 10000, MAX_MISSES = 1000;
+	
+	private volatile Pattern pattern;
+	private Map<String, Boolean> decisions = new ConcurrentHashMap<String, Boolean>();
+	private Map<String, Boolean> misses = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > MAX_MISSES;
+		}
+	});
+	
+	public void setRegex(String regex) {
+		pattern = regex == null ? null : Pattern.compile(regex);
+		decisions.clear();
+	}
+	
+	public boolean matches(String id) {
+		Pattern pattern = this.pattern;
+		if (pattern == null) {
+			return true;
+		}
+		Boolean decision = decisions.get(id);
+		if (decision == null) {
+			// the ids are finite but there is no need to remember all of them
+			if (decisions.size() >= MAX_DECISIONS) {
+				decisions.clear();
+			}
+			decision = pattern.matcher(id).matches();
+			decisions.put(id, decision);
+		}
+		return decision;
+	}
+	
+	public boolean isRemoteMiss(String id) {
+		return misses.containsKey(id);
+	}
+	
+	public void addRemoteMiss(String id) {
+		misses.put(id, true);
+	}
+	
+	/**
+	 * Should be called whenever the remote structure may have changed
+	 */
+	public void invalidate() {
+		misses.clear();
+	}
+}
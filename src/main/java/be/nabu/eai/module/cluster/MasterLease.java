@@ -0,0 +1,57 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+/**
+ * A local view on the outcome of the last election, valid until it expires: a change in leadership that this server has not been told about yet can go unnoticed for at most the duration of the lease.
+ * The epoch is strictly increasing on this server only, it is derived from the local clock and is not agreed upon by the cluster. A deposed master on a server with a clock that runs ahead can hold a higher epoch than the new master.
+ * The epoch is therefore advisory: it can tell apart successive leaderships of this server, it can not fence off a stale master elsewhere in the cluster.
+ */
+public class MasterLease {
+	private String master;
+	private boolean amMaster;
+	private long epoch, expires;
+	
+	public MasterLease(String master, boolean amMaster, long epoch, long expires) {
+		this.master = master;
+		this.amMaster = amMaster;
+		this.epoch = epoch;
+		this.expires = expires;
+	}
+	
+	public String getMaster() {
+		return master;
+	}
+	public boolean isMaster() {
+		return amMaster;
+	}
+	public long getEpoch() {
+		return epoch;
+	}
+	public long getExpires() {
+		return expires;
+	}
+	public boolean isExpired() {
+		return expires < System.currentTimeMillis();
+	}
+	
+	@Override
+	public String toString() {
+		return "lease[" + master + ", epoch " + epoch + (amMaster ? ", owned" : "") + "]";
+	}
+}
@@ -0,0 +1,68 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import be.nabu.eai.repository.EAIRepositoryUtils;
+import be.nabu.eai.repository.api.Entry;
+import be.nabu.eai.repository.api.Node;
+import be.nabu.eai.repository.api.ResourceEntry;
+
+/**
+ * A node that is only looked up when it is first needed.
+ * This allows the indexes to be built from a snapshot without reading the node description of every remote entry.
+ */
+class NodeReference {
+	
+	private ResourceEntry root;
+	private String id;
+	private volatile Entry entry;
+	private volatile Node node;
+	
+	public NodeReference(Entry entry) {
+		this.entry = entry;
+	}
+	
+	public NodeReference(ResourceEntry root, String id) {
+		this.root = root;
+		this.id = id;
+	}
+	
+	/**
+	 * Returns null if the entry no longer exists
+	 */
+	public Entry getEntry() {
+		Entry entry = this.entry;
+		if (entry == null) {
+			entry = EAIRepositoryUtils.getEntry(root, id);
+			this.entry = entry;
+		}
+		return entry;
+	}
+	
+	/**
+	 * Returns null if the entry no longer exists or is not a node
+	 */
+	public Node getNode() {
+		if (node == null) {
+			Entry entry = getEntry();
+			// concurrent lookups may resolve the node twice, the entry returns the same node
+			node = entry == null || !entry.isNode() ? null : entry.getNode();
+		}
+		return node;
+	}
+}
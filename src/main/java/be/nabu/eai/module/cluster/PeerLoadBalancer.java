@@ -0,0 +1,199 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks a peer to offload a call to using the power of two choices: two random candidates are compared and the least loaded one wins.
+ * The load of a peer combines the latency of earlier calls (as an exponentially weighted moving average), the calls that are still running and the load it advertises in its heartbeats.
+ * A peer that fails a call is excluded for a while (longer with every consecutive failure) and remains more expensive until it succeeds again.
+ */
+public class PeerLoadBalancer {
+	
+	public static final String LOAD_HEADER = "X-Cluster-Load";
+	public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+	// the weight of the newest latency sample
+	private static final double ALPHA = 0.3;
+	// a system load (per processor) beyond this means the server is saturated
+	private static final double SATURATED = 1;
+	// how long a peer is excluded after its first failure, this doubles with every consecutive failure up to the maximum
+	private static final long EXCLUSION = 1000, MAX_EXCLUSION = 1000l*30;
+	
+	private ConcurrentMap<String, PeerStatistics> statistics = new ConcurrentHashMap<String, PeerStatistics>();
+	private ClusterHeartbeat heartbeat;
+	private String self;
+	private int maxInFlight;
+	// how long an advertised load remains valid
+	private long loadTtl;
+	
+	public PeerLoadBalancer(ClusterHeartbeat heartbeat, String self, int maxInFlight, long loadTtl) {
+		this.heartbeat = heartbeat;
+		this.self = self;
+		this.maxInFlight = maxInFlight;
+		this.loadTtl = loadTtl;
+	}
+	
+	/**
+	 * Returns the peer the call should go to or null if it should run locally because all the peers are saturated (or at least as busy as this server)
+	 */
+	public String choose(Collection<String> hosts) {
+		List<String> candidates = new ArrayList<String>();
+		for (String host : hosts) {
+			if (!host.equals(self) && !heartbeat.isSuspected(host)) {
+				PeerStatistics peer = getStatistics(host);
+				if (peer.isExcluded()) {
+					continue;
+				}
+				double load = peer.getLoad(loadTtl);
+				if (peer.inFlight.get() < maxInFlight && (load < 0 || load < SATURATED)) {
+					candidates.add(host);
+				}
+			}
+		}
+		if (candidates.isEmpty()) {
+			return null;
+		}
+		int first = ThreadLocalRandom.current().nextInt(candidates.size());
+		String chosen = candidates.get(first);
+		if (candidates.size() > 1) {
+			// a second, different candidate
+			int second = ThreadLocalRandom.current().nextInt(candidates.size() - 1);
+			String other = candidates.get(second >= first ? second + 1 : second);
+			if (getStatistics(other).getCost(loadTtl) < getStatistics(chosen).getCost(loadTtl)) {
+				chosen = other;
+			}
+		}
+		// only offload if the peer is known to be less busy than we are
+		double localLoad = getOwnLoad();
+		double peerLoad = getStatistics(chosen).getLoad(loadTtl);
+		if (localLoad >= 0 && localLoad < SATURATED && (peerLoad < 0 || peerLoad >= localLoad)) {
+			return null;
+		}
+		return chosen;
+	}
+	
+	public void started(String host) {
+		getStatistics(host).inFlight.incrementAndGet();
+	}
+	
+	/**
+	 * The call succeeded, only successful calls are part of the latency
+	 */
+	public void succeeded(String host, long duration) {
+		PeerStatistics peer = getStatistics(host);
+		peer.inFlight.decrementAndGet();
+		peer.record(duration);
+	}
+	
+	/**
+	 * The call could not be done by the peer
+	 */
+	public void failed(String host) {
+		PeerStatistics peer = getStatistics(host);
+		peer.inFlight.decrementAndGet();
+		peer.fail();
+	}
+	
+	/**
+	 * The call finished but its outcome says nothing about the peer (e.g. the service itself threw an exception)
+	 */
+	public void finished(String host) {
+		getStatistics(host).inFlight.decrementAndGet();
+	}
+	
+	public void setAdvertisedLoad(String host, double load) {
+		PeerStatistics peer = getStatistics(host);
+		peer.load = load;
+		peer.loadTimestamp = System.currentTimeMillis();
+	}
+	
+	public double getLatency(String host) {
+		return getStatistics(host).latency;
+	}
+	
+	public int getInFlight(String host) {
+		return getStatistics(host).inFlight.get();
+	}
+	
+	public int getFailures(String host) {
+		return getStatistics(host).failures;
+	}
+	
+	private PeerStatistics getStatistics(String host) {
+		PeerStatistics peer = statistics.get(host);
+		if (peer == null) {
+			peer = new PeerStatistics();
+			PeerStatistics existing = statistics.putIfAbsent(host, peer);
+			if (existing != null) {
+				peer = existing;
+			}
+		}
+		return peer;
+	}
+	
+	// the load we compare the peers with
+	double getOwnLoad() {
+		return getLocalLoad();
+	}
+	
+	/**
+	 * The system load average per processor of this server or a negative value if it is not available
+	 */
+	public static double getLocalLoad() {
+		double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+		return load < 0 ? -1 : load / Runtime.getRuntime().availableProcessors();
+	}
+	
+	private static class PeerStatistics {
+		private AtomicInteger inFlight = new AtomicInteger();
+		private volatile double latency, load = -1;
+		private volatile long loadTimestamp, excludedUntil;
+		// consecutive failures
+		private volatile int failures;
+		
+		private synchronized void record(long duration) {
+			latency = latency == 0 ? duration : ALPHA * duration + (1 - ALPHA) * latency;
+			failures = 0;
+		}
+		
+		private synchronized void fail() {
+			failures++;
+			excludedUntil = System.currentTimeMillis() + Math.min(MAX_EXCLUSION, EXCLUSION << Math.min(failures - 1, 10));
+		}
+		
+		private boolean isExcluded() {
+			return excludedUntil > System.currentTimeMillis();
+		}
+		
+		private double getLoad(long ttl) {
+			return loadTimestamp < System.currentTimeMillis() - ttl ? -1 : load;
+		}
+		
+		private double getCost(long ttl) {
+			return (latency + 1) * (inFlight.get() + 1) * (1 + Math.max(0, getLoad(ttl))) * (failures + 1);
+		}
+	}
+}
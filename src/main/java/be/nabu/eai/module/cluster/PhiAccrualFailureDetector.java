@@ -0,0 +1,94 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al.), instead of a binary up/down it expresses the suspicion that a host is down on a continuous scale.
+ * A phi of 1 means a 10% chance of being wrong when suspecting the host, 2 means 1%, 3 means 0.1% and so on.
+ * The inter-arrival times of the heartbeats are modeled as a normal distribution, the acceptable pause is added to the mean to absorb for example garbage collection pauses.
+ */
+public class PhiAccrualFailureDetector {
+	
+	private static final int MAX_SAMPLES = 200;
+	
+	private Deque<Long> intervals = new ArrayDeque<Long>();
+	private long lastHeartbeat, acceptablePause, minStandardDeviation;
+	private double sum, squaredSum;
+	// the last heartbeat is the moment we started, not an actual heartbeat
+	private boolean seeded = true;
+	
+	/**
+	 * The detector acts as if a heartbeat arrived when it was started, a host that never answers is suspected like any other host that stops answering
+	 */
+	public PhiAccrualFailureDetector(long firstHeartbeatEstimate, long acceptablePause, long minStandardDeviation, long started) {
+		this.acceptablePause = acceptablePause;
+		this.minStandardDeviation = minStandardDeviation;
+		this.lastHeartbeat = started;
+		// bootstrap with an estimate so we don't suspect the host before we have any data
+		add(firstHeartbeatEstimate - firstHeartbeatEstimate / 4);
+		add(firstHeartbeatEstimate + firstHeartbeatEstimate / 4);
+	}
+	
+	public synchronized void heartbeat(long timestamp) {
+		// the time until the first actual heartbeat says nothing about the interval between heartbeats
+		if (!seeded && timestamp > lastHeartbeat) {
+			add(timestamp - lastHeartbeat);
+		}
+		if (seeded || timestamp > lastHeartbeat) {
+			lastHeartbeat = timestamp;
+		}
+		seeded = false;
+	}
+	
+	public synchronized double phi(long timestamp) {
+		double mean = sum / intervals.size();
+		double variance = (squaredSum / intervals.size()) - (mean * mean);
+		double standardDeviation = Math.max(Math.sqrt(Math.max(variance, 0)), minStandardDeviation);
+		return phi(timestamp - lastHeartbeat, mean + acceptablePause, standardDeviation);
+	}
+	
+	public synchronized long getLastHeartbeat() {
+		return lastHeartbeat;
+	}
+	
+	// logistic approximation of the cumulative normal distribution, this avoids the precision problems of the error function for large values
+	private static double phi(long timeDiff, double mean, double standardDeviation) {
+		double y = (timeDiff - mean) / standardDeviation;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (timeDiff > mean) {
+			return -Math.log10(e / (1.0 + e));
+		}
+		else {
+			return -Math.log10(1.0 - 1.0 / (1.0 + e));
+		}
+	}
+	
+	private void add(long interval) {
+		if (intervals.size() >= MAX_SAMPLES) {
+			long removed = intervals.removeFirst();
+			sum -= removed;
+			squaredSum -= (double) removed * removed;
+		}
+		intervals.addLast(interval);
+		sum += interval;
+		squaredSum += (double) interval * interval;
+	}
+}
@@ -0,0 +1,216 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps both directions of the reference graph in sync so adding or removing an id only touches its own edges
+ * A graph that has been published to readers is never modified again, changes are made on a {@link #copy()} which shares the unchanged edges with the original.
+ */
+class ReferenceGraph {
+	
+	private Logger logger = LoggerFactory.getLogger(getClass());
+	private IdMap<Set<String>> references = new IdMap<Set<String>>(), dependencies = new IdMap<Set<String>>();
+	// memoized transitive dependencies per id, they belong to a single version of the graph
+	private Map<String, Set<String>> closures = new ConcurrentHashMap<String, Set<String>>();
+	// the dependency sets that were created by this graph and can be modified in place, the others are shared with the graph we were copied from
+	private Set<Set<String>> owned = Collections.newSetFromMap(new IdentityHashMap<Set<String>, Boolean>());
+	
+	/**
+	 * Creates a new version of the graph, it shares the buckets of the original and only the buckets and edges that are modified in the copy are actually duplicated
+	 * The closures are not copied, the new version calculates the ones it needs.
+	 */
+	public ReferenceGraph copy() {
+		ReferenceGraph copy = new ReferenceGraph();
+		// the reference sets are never modified, only replaced
+		copy.references = references.copy();
+		copy.dependencies = dependencies.copy();
+		return copy;
+	}
+	
+	private Set<String> getOwnedDependencies(String reference, boolean create) {
+		Set<String> dependencies = this.dependencies.get(reference);
+		if (dependencies == null ? create : !owned.contains(dependencies)) {
+			dependencies = dependencies == null ? new LinkedHashSet<String>() : new LinkedHashSet<String>(dependencies);
+			owned.add(dependencies);
+			this.dependencies.put(reference, dependencies);
+		}
+		return dependencies;
+	}
+	
+	public void add(String id, List<String> references) {
+		if (references != null) {
+			// replace any existing edges
+			remove(id);
+			Set<String> set = new LinkedHashSet<String>(references);
+			this.references.put(id, set);
+			invalidate(set);
+			for (String reference : set) {
+				getOwnedDependencies(reference, true).add(id);
+			}
+		}
+	}
+	
+	public void remove(String id) {
+		Set<String> references = this.references.remove(id);
+		if (references != null) {
+			invalidate(references);
+			for (String reference : references) {
+				Set<String> dependencies = getOwnedDependencies(reference, false);
+				// we keep the (empty) set, it still marks the id as known to this graph
+				if (dependencies != null) {
+					dependencies.remove(id);
+				}
+			}
+		}
+	}
+	
+	public boolean hasReferences(String id) {
+		return references.containsKey(id);
+	}
+	
+	public List<String> getReferences(String id) {
+		Set<String> set = references.get(id);
+		return set == null ? new ArrayList<String>() : new ArrayList<String>(set);
+	}
+	
+	public boolean hasDependencies(String id) {
+		return dependencies.containsKey(id);
+	}
+	
+	public List<String> getDependencies(String id) {
+		Set<String> set = dependencies.get(id);
+		return set == null ? new ArrayList<String>() : new ArrayList<String>(set);
+	}
+	
+	public void clear() {
+		references.clear();
+		dependencies.clear();
+		closures.clear();
+		owned.clear();
+	}
+	
+	/**
+	 * Calculates everything that (transitively) depends on the given ids in the order they should be reloaded: an id always comes after the ids it references.
+	 * The given ids themselves are only part of the result if they depend on one of the other ids.
+	 */
+	public List<String> getDependenciesToReload(Collection<String> ids) {
+		Set<String> closure = new LinkedHashSet<String>();
+		for (String id : ids) {
+			closure.addAll(getClosure(id));
+		}
+		// Kahn's algorithm restricted to the closure, references outside of it are either already loaded or being reloaded by the caller
+		Map<String, Integer> pending = new HashMap<String, Integer>();
+		Deque<String> ready = new ArrayDeque<String>();
+		for (String id : closure) {
+			int count = 0;
+			Set<String> references = this.references.get(id);
+			if (references != null) {
+				for (String reference : references) {
+					if (!reference.equals(id) && closure.contains(reference)) {
+						count++;
+					}
+				}
+			}
+			pending.put(id, count);
+			if (count == 0) {
+				ready.add(id);
+			}
+		}
+		List<String> ordered = new ArrayList<String>();
+		while (!ready.isEmpty()) {
+			String id = ready.poll();
+			ordered.add(id);
+			Set<String> dependencies = this.dependencies.get(id);
+			if (dependencies != null) {
+				for (String dependency : dependencies) {
+					Integer count = pending.get(dependency);
+					if (count != null && count > 0 && !dependency.equals(id)) {
+						pending.put(dependency, count - 1);
+						if (count == 1) {
+							ready.add(dependency);
+						}
+					}
+				}
+			}
+		}
+		// whatever is left is part of a cycle, there is no correct order so we keep the discovery order
+		if (ordered.size() < closure.size()) {
+			List<String> cyclic = new ArrayList<String>();
+			for (String id : closure) {
+				if (pending.get(id) > 0) {
+					cyclic.add(id);
+				}
+			}
+			logger.warn("Circular references detected between: " + cyclic);
+			ordered.addAll(cyclic);
+		}
+		return ordered;
+	}
+	
+	// the transitive dependencies of a single id, calculated iteratively so deep or cyclic graphs can not overflow the stack
+	private Set<String> getClosure(String id) {
+		Set<String> closure = closures.get(id);
+		if (closure == null) {
+			closure = new LinkedHashSet<String>();
+			Deque<String> todo = new ArrayDeque<String>();
+			todo.add(id);
+			while (!todo.isEmpty()) {
+				Set<String> dependencies = this.dependencies.get(todo.poll());
+				if (dependencies != null) {
+					for (String dependency : dependencies) {
+						if (closure.add(dependency)) {
+							todo.add(dependency);
+						}
+					}
+				}
+			}
+			closures.put(id, closure);
+		}
+		return closure;
+	}
+	
+	// if the edges to these references change, only the closures that contain them (or start from them) are affected
+	private void invalidate(Set<String> references) {
+		if (!closures.isEmpty()) {
+			Iterator<Map.Entry<String, Set<String>>> iterator = closures.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, Set<String>> next = iterator.next();
+				if (references.contains(next.getKey()) || !Collections.disjoint(references, next.getValue())) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+}
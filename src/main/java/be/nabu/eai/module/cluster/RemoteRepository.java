@@ -17,21 +17,38 @@
 
 package be.nabu.eai.module.cluster;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import be.nabu.eai.repository.EAIRepositoryUtils;
+import be.nabu.eai.module.cluster.api.RepositoryListing;
 import be.nabu.eai.repository.EAIResourceRepository;
+import be.nabu.eai.repository.api.ArtifactManager;
 import be.nabu.eai.repository.api.ArtifactRepositoryManager;
 import be.nabu.eai.repository.api.Entry;
 import be.nabu.eai.repository.api.ModifiableEntry;
@@ -46,23 +63,63 @@ import be.nabu.libs.authentication.api.Token;
 import be.nabu.libs.events.api.EventDispatcher;
 import be.nabu.libs.events.impl.EventDispatcherImpl;
 import be.nabu.libs.metrics.api.MetricInstance;
+import be.nabu.libs.metrics.api.MetricTimer;
+import be.nabu.libs.resources.api.Resource;
 import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.TimestampedResource;
 import be.nabu.libs.services.api.DefinedService;
 import be.nabu.libs.services.api.ExecutionContext;
 import be.nabu.libs.services.api.ServiceRunner;
+import be.nabu.libs.validator.api.Validation;
 
 public class RemoteRepository implements ResourceRepository {
 
+	public static final String METRIC_START = "start";
+	public static final String METRIC_RELOAD = "reload";
+	public static final String METRIC_RELOAD_ALL = "reloadAll";
+	public static final String METRIC_RELOAD_IDS = "reloadIds";
+	public static final String METRIC_RELOAD_DEPENDENCY = "reloadDependency";
+	public static final String METRIC_CALCULATE_DEPENDENCIES = "calculateDependencies";
+	public static final String METRIC_GET_ARTIFACTS = "getArtifacts";
+	public static final String METRIC_LOAD_MANAGERS = "loadArtifactManagers";
+	public static final String METRIC_REMOTE_REFRESH = "remoteRefresh";
+	public static final String METRIC_REMOTE_LISTING = "remoteListing";
+	public static final String METRIC_ARTIFACT_CACHE_HIT = "artifactCacheHit";
+	public static final String METRIC_ARTIFACT_CACHE_MISS = "artifactCacheMiss";
+	public static final String METRIC_LOCAL_LOOKUP = "localLookup";
+
 	private ResourceRepository local;
 	private EventDispatcher dispatcher = new EventDispatcherImpl();
 	private RepositoryEntry root;
 	private Charset charset = Charset.forName("UTF-8");
-	private Map<Class<? extends Artifact>, Map<String, Node>> nodesByType;
+	// the published versions of the indexes, readers never lock and never see a partial reload
+	private volatile TypeIndex types = new TypeIndex();
+	private int artifactCacheSize = 1000;
+	private volatile ArtifactCache artifacts = new ArtifactCache(artifactCacheSize);
 	private Logger logger = LoggerFactory.getLogger(getClass());
-	private Map<String, List<String>> references = new HashMap<String, List<String>>(), dependencies = new HashMap<String, List<String>>();
+	private volatile ReferenceGraph references = new ReferenceGraph();
+	// the versions that are being built by the thread holding the write lock
+	private TypeIndex pendingTypes;
+	private ReferenceGraph pendingReferences;
+	// the cached artifacts that have to be invalidated when the pending versions are published, null means all of them
+	private Set<String> pendingInvalidations = new HashSet<String>();
+	private ReentrantLock writeLock = new ReentrantLock();
+	private int writeDepth;
+	private boolean writeFailed;
+	// threads that work on behalf of the writer, they read the pending versions as well
+	private Set<Thread> helpers = ConcurrentHashMap.newKeySet();
 	private boolean isLoading;
 	private boolean allowLocalLookup;
 	private String localLookupRegex;
+	private LocalLookupRouter router = new LocalLookupRouter();
+	private int loadParallelism = Runtime.getRuntime().availableProcessors();
+	private File snapshotFile;
+	// the snapshot we read and the one we are building, only used during the initial load
+	private volatile RepositorySnapshot snapshot, collected;
+	private AtomicInteger reused = new AtomicInteger();
+	private Map<String, Class<?>> artifactClasses = new ConcurrentHashMap<String, Class<?>>();
+	private RepositoryListing repositoryListing;
+	private String metricsId = "remoteRepository";
 
 	public RemoteRepository(ResourceRepository local, ResourceContainer<?> root) {
 		this.local = local;
@@ -76,12 +133,24 @@ public class RemoteRepository implements ResourceRepository {
 
 	@Override
 	public Entry getEntry(String id) {
-		Entry entry = EAIRepositoryUtils.getEntry(getRoot(), id);
-		if (entry == null && allowLocalLookup && (localLookupRegex == null || id.matches(localLookupRegex))) {
+		boolean localLookup = isLocalLookup(id);
+		Entry entry = null;
+		if (!localLookup || !router.isRemoteMiss(id)) {
+			entry = EAIRepositoryUtils.getEntry(getRoot(), id);
+			if (entry == null && localLookup) {
+				router.addRemoteMiss(id);
+			}
+		}
+		if (entry == null && localLookup) {
+			increment(METRIC_LOCAL_LOOKUP);
 			entry = local.getEntry(id);
 		}
 		return entry;
 	}
+	
+	private boolean isLocalLookup(String id) {
+		return allowLocalLookup && router.matches(id);
+	}
 
 	@Override
 	public Charset getCharset() {
@@ -95,8 +164,18 @@ public class RemoteRepository implements ResourceRepository {
 
 	@Override
 	public Node getNode(String id) {
-		Node node = EAIRepositoryUtils.getNode(this, id);
-		if (node == null && allowLocalLookup && (localLookupRegex == null || id.matches(localLookupRegex))) {
+		boolean localLookup = isLocalLookup(id);
+		Node node = null;
+		if (!localLookup || !router.isRemoteMiss(id)) {
+			// we don't use the utils here as they use getEntry() which would fall back to the local repository
+			Entry entry = EAIRepositoryUtils.getEntry(getRoot(), id);
+			node = entry == null || !entry.isNode() ? null : entry.getNode();
+			if (entry == null && localLookup) {
+				router.addRemoteMiss(id);
+			}
+		}
+		if (node == null && localLookup) {
+			increment(METRIC_LOCAL_LOOKUP);
 			node = local.getNode(id);
 		}
 		return node;
@@ -109,14 +188,35 @@ public class RemoteRepository implements ResourceRepository {
 	
 	private void reload(String id, boolean recursiveReload) {
 		logger.info("Reloading: " + id);
+		MetricTimer timer = startTimer(recursiveReload ? METRIC_RELOAD : METRIC_RELOAD_DEPENDENCY);
+		router.invalidate();
 		if (recursiveReload) {
 			getEventDispatcher().fire(new RepositoryEvent(RepositoryState.RELOAD, false), this);
 		}
+		// the listing is remote i/o, we fetch it before taking the write lock so other writers don't wait on it
+		Listing listing = recursiveReload ? getListing(id) : null;
+		beginWrite();
+		boolean succeeded = false;
+		try {
+			reloadEntry(id, recursiveReload, listing);
+			succeeded = true;
+		}
+		finally {
+			endWrite(succeeded);
+			stopTimer(timer);
+		}
+		if (recursiveReload) {
+			EAIResourceRepository.getInstance().reattachMavenArtifacts(root);
+			getEventDispatcher().fire(new RepositoryEvent(RepositoryState.RELOAD, true), this);
+		}
+	}
+	
+	private void reloadEntry(String id, boolean recursiveReload, Listing listing) {
 		Entry entry = getEntry(id);
 		// if we have an entry on the root which is not found, it could be new, reset the root (if possible) and try again
 		// alternatively we can reload the entire root folder but this would have massive performance repercussions
 		if (entry == null && !id.contains(".")) {
-			getRoot().refresh(false);
+			refresh(getRoot());
 			entry = getEntry(id);
 		}
 		if (recursiveReload) {
@@ -127,69 +227,141 @@ public class RemoteRepository implements ResourceRepository {
 			}
 		}
 		if (entry != null) {
-			unload(entry);
-			load(entry);
+			// one listing of the remote subtree replaces a listing per entry, if the prefetched one is for another subtree we list again
+			if (recursiveReload && (listing == null || !entry.getId().equals(listing.id))) {
+				listing = getListing(entry);
+			}
+			unload(entry, listing);
+			load(entry, listing);
 			// also reload all the dependencies
 			// prevent concurrent modification
 			if (recursiveReload) {
-				Set<String> dependenciesToReload = calculateDependenciesToReload(entry);
+				List<String> dependenciesToReload = calculateDependenciesToReload(entry);
 				for (String dependency : dependenciesToReload) {
 					reload(dependency, false);
 				}
 			}
 		}
-		if (recursiveReload) {
-			EAIResourceRepository.getInstance().reattachMavenArtifacts(root);
-			getEventDispatcher().fire(new RepositoryEvent(RepositoryState.RELOAD, true), this);
-		}
 	}
 	
-	private Set<String> calculateDependenciesToReload(Entry entry) {
-		Set<String> dependencies = new HashSet<String>();
-		if (entry.isNode()) {
-			dependencies.addAll(calculateDependenciesToReload(entry.getId()));
+	// starts (or joins) a write on a private copy of the indexes
+	private void beginWrite() {
+		writeLock.lock();
+		if (writeDepth++ == 0) {
+			pendingReferences = references.copy();
+			pendingTypes = types.copy();
 		}
-		if (!entry.isLeaf()) {
-			for (Entry child : entry) {
-				Set<String> calculateDependenciesToReload = calculateDependenciesToReload(child);
-				dependencies.removeAll(calculateDependenciesToReload);
-				dependencies.addAll(calculateDependenciesToReload);
+	}
+	
+	/**
+	 * The outermost write publishes the new versions in one go, if any part of the write failed the pending versions are thrown away and the last published ones remain.
+	 * The entry tree itself is modified in place so it can not be rolled back, the published indexes refer to it by id and stay usable but none of the cached artifacts can be trusted anymore.
+	 */
+	private void endWrite(boolean succeeded) {
+		try {
+			if (!succeeded) {
+				writeFailed = true;
+			}
+			if (--writeDepth == 0) {
+				if (writeFailed) {
+					logger.warn("The repository write failed, discarding the pending indexes");
+					pendingInvalidations = null;
+				}
+				else {
+					references = pendingReferences;
+					types = pendingTypes;
+				}
+				pendingReferences = null;
+				pendingTypes = null;
+				writeFailed = false;
+				// only now, readers that resolve an artifact before this point could otherwise cache a stale one again
+				if (pendingInvalidations == null || !pendingInvalidations.isEmpty()) {
+					artifacts.invalidate(pendingInvalidations);
+					pendingInvalidations = new HashSet<String>();
+				}
 			}
 		}
+		finally {
+			writeLock.unlock();
+		}
+	}
+	
+	// the thread that is writing sees its own changes, everyone else sees the last published version
+	private ReferenceGraph getReferenceGraph() {
+		return isWriter() ? pendingReferences : references;
+	}
+	
+	private TypeIndex getTypeIndex() {
+		return isWriter() ? pendingTypes : types;
+	}
+	
+	private boolean isWriter() {
+		return writeLock.isHeldByCurrentThread() || (!helpers.isEmpty() && helpers.contains(Thread.currentThread()));
+	}
+	
+	private List<String> calculateDependenciesToReload(Entry entry) {
+		Set<String> ids = new LinkedHashSet<String>();
+		collectNodeIds(entry, ids);
+		MetricTimer timer = startTimer(METRIC_CALCULATE_DEPENDENCIES);
+		List<String> dependencies = getReferenceGraph().getDependenciesToReload(ids);
+		stopTimer(timer);
+		// the entry itself was just reloaded
+		dependencies.removeAll(ids);
 		return dependencies;
 	}
 	
-	private Set<String> calculateDependenciesToReload(String id) {
-		List<String> directDependencies = getDependencies(id);
-		Set<String> dependenciesToReload = new LinkedHashSet<String>(directDependencies);
-		for (String directDependency : directDependencies) {
-			Set<String> indirectDependencies = calculateDependenciesToReload(directDependency);
-			// remove any dependencies that are also in the indirect ones
-			// we can add them again afterwards which means they will only be in the list once and in the correct order
-			dependenciesToReload.removeAll(indirectDependencies);
-			dependenciesToReload.addAll(indirectDependencies);
+	private void collectNodeIds(Entry entry, Set<String> ids) {
+		if (entry.isNode()) {
+			ids.add(entry.getId());
+		}
+		if (!entry.isLeaf()) {
+			for (Entry child : entry) {
+				collectNodeIds(child, ids);
+			}
 		}
-		return dependenciesToReload;
 	}
 
 	@Override
 	public void unload(String id) {
+		router.invalidate();
 		Entry entry = getEntry(id);
 		if (entry != null) {
-			unload(entry);
-			if (entry.getParent() instanceof ModifiableEntry) {
-				((ModifiableEntry) entry.getParent()).removeChildren(entry.getName());
+			beginWrite();
+			boolean succeeded = false;
+			try {
+				unload(entry);
+				if (entry.getParent() instanceof ModifiableEntry) {
+					((ModifiableEntry) entry.getParent()).removeChildren(entry.getName());
+				}
+				else {
+					refresh(entry.getParent());
+				}
+				succeeded = true;
 			}
-			else {
-				entry.getParent().refresh(false);
+			finally {
+				endWrite(succeeded);
 			}
 		}		
 	}
 
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	private void unload(Entry entry) {
-		entry.refresh(false);
-		reset();
+		unload(entry, null);
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void unload(Entry entry, Listing listing) {
+		// do this before the refresh, afterwards we may no longer see removed children
+		if (entry.getParent() == null) {
+			getTypeIndex().clear();
+			invalidateArtifacts(null);
+		}
+		else {
+			getTypeIndex().removeTree(entry.getId());
+			invalidateArtifacts(entry.getId());
+		}
+		if (needsRefresh(entry, listing)) {
+			refresh(entry);
+		}
 		if (entry.isNode()) {
 			unbuildReferenceMap(entry.getId());
 			// if there is an artifact manager and it maintains a repository, remove it all
@@ -204,7 +376,7 @@ public class RemoteRepository implements ResourceRepository {
 		}
 		if (!entry.isLeaf()) {
 			for (Entry child : entry) {
-				unload(child);
+				unload(child, listing);
 			}
 		}
 	}
@@ -221,10 +393,10 @@ public class RemoteRepository implements ResourceRepository {
 
 	@Override
 	public List<String> getReferences(String id) {
-		if (references.containsKey(id)) {
-			return new ArrayList<String>(references.get(id));
+		if (getReferenceGraph().hasReferences(id)) {
+			return getReferenceGraph().getReferences(id);
 		}
-		else if (allowLocalLookup && (localLookupRegex == null || id.matches(localLookupRegex))) {
+		else if (isLocalLookup(id)) {
 			return local.getReferences(id);
 		}
 		else {
@@ -234,10 +406,10 @@ public class RemoteRepository implements ResourceRepository {
 
 	@Override
 	public List<String> getDependencies(String id) {
-		if (dependencies.containsKey(id)) {
-			return new ArrayList<String>(dependencies.get(id));
+		if (getReferenceGraph().hasDependencies(id)) {
+			return getReferenceGraph().getDependencies(id);
 		}
-		else if (allowLocalLookup && (localLookupRegex == null || id.matches(localLookupRegex))) {
+		else if (isLocalLookup(id)) {
 			return local.getDependencies(id);
 		}
 		else {
@@ -247,98 +419,561 @@ public class RemoteRepository implements ResourceRepository {
 
 	@Override
 	public void start() {
+		MetricTimer timer = startTimer(METRIC_START);
 		getEventDispatcher().fire(new RepositoryEvent(RepositoryState.LOAD, false), this);
 		isLoading = true;
+		router.invalidate();
+		if (snapshotFile != null) {
+			snapshot = RepositorySnapshot.read(snapshotFile);
+			if (snapshot == null) {
+				logger.info("No valid repository snapshot found at " + snapshotFile + ", loading everything remotely");
+			}
+			collected = new RepositorySnapshot();
+			reused.set(0);
+		}
 		EAIResourceRepository.getInstance().reattachMavenArtifacts(root);
-		load(getRoot());
+		beginWrite();
+		boolean succeeded = false;
+		try {
+			List<Entry> artifactRepositoryManagers = snapshot == null ? null : loadFromSnapshot();
+			if (artifactRepositoryManagers == null) {
+				load(getRoot());
+			}
+			else {
+				loadArtifactManagers(artifactRepositoryManagers);
+			}
+			succeeded = true;
+		}
+		finally {
+			endWrite(succeeded);
+		}
 		isLoading = false;
+		if (collected != null) {
+			logger.info("Reused " + reused.get() + " of " + collected.size() + " nodes from the repository snapshot");
+			try {
+				collected.write(snapshotFile);
+			}
+			catch (IOException e) {
+				logger.warn("Could not write repository snapshot: " + snapshotFile, e);
+			}
+		}
+		snapshot = null;
+		collected = null;
 		// IMPORTANT: this assumes the local server artifacts are in sync with the remote ones!! [IN-SYNC]
 		// It is trivial to have multiple module versions in memory, it is however hard in the other repositories to know which one to use
 		EAIResourceRepository.getInstance().reattachMavenArtifacts(root);
+		stopTimer(timer);
 		getEventDispatcher().fire(new RepositoryEvent(RepositoryState.LOAD, true), this);
 	}
 
 	private void buildReferenceMap(String id, List<String> references) {
-		if (references != null) {
-			this.references.put(id, references);
-			for (String reference : references) {
-				if (!dependencies.containsKey(reference)) {
-					dependencies.put(reference, new ArrayList<String>());
+		getReferenceGraph().add(id, references);
+	}
+	private void unbuildReferenceMap(String id) {
+		getReferenceGraph().remove(id);
+	}
+	
+	private void load(Entry entry, List<Entry> artifactRepositoryManagers, Listing listing) {
+		// don't refresh on initial load, this messes up performance for remote file systems
+		if (!isLoading && needsRefresh(entry, listing)) {
+			// refresh every entry before reloading it, there could be new elements (e.g. remote changes to repo)
+			refresh(entry);
+		}
+		if (entry.isNode()) {
+			logger.info("Loading entry: " + entry.getId());
+			RepositorySnapshot.Record record = describe(entry);
+			buildReferenceMap(entry.getId(), record.getReferences());
+			getTypeIndex().add(entry.getId(), new NodeReference(entry), getArtifactClass(entry, record));
+			if (entry instanceof ModifiableEntry && record.isRepositoryManager()) {
+				artifactRepositoryManagers.add(entry);
+			}
+		}
+		if (!entry.isLeaf()) {
+			for (Entry child : entry) {
+				load(child, artifactRepositoryManagers, listing);
+			}
+		}
+	}
+	
+	private List<Entry> loadInParallel(Entry entry) {
+		ForkJoinPool pool = new ForkJoinPool(loadParallelism);
+		try {
+			LoadResult result = pool.invoke(new LoadTask(entry));
+			// the reference map is not thread safe, merge it afterwards
+			for (Entry node : result.nodes) {
+				RepositorySnapshot.Record record = result.records.get(node.getId());
+				buildReferenceMap(node.getId(), record.getReferences());
+				getTypeIndex().add(node.getId(), new NodeReference(node), getArtifactClass(node, record));
+			}
+			return result.artifactRepositoryManagers;
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * One listing of the remote repository tells us which nodes have changed since the snapshot, the others are indexed from the snapshot without touching their remote entries.
+	 * Returns null if there is no listing available, the tree is walked instead.
+	 */
+	private List<Entry> loadFromSnapshot() {
+		Listing listing = getListing(getRoot());
+		// without timestamps we can not tell what changed
+		if (listing == null || !listing.hasStamps()) {
+			return null;
+		}
+		List<Entry> artifactRepositoryManagers = new ArrayList<Entry>();
+		for (Map.Entry<String, Date> stamp : listing.stamps.entrySet()) {
+			// folders have no stamp
+			if (stamp.getValue() == null) {
+				continue;
+			}
+			String id = stamp.getKey();
+			RepositorySnapshot.Record record = snapshot.get(id);
+			Entry entry = null;
+			if (record != null && record.getStamp() == stamp.getValue().getTime()) {
+				reused.incrementAndGet();
+			}
+			else {
+				entry = EAIRepositoryUtils.getEntry(getRoot(), id);
+				if (entry == null || !entry.isNode()) {
+					continue;
+				}
+				logger.info("Loading entry: " + id);
+				record = describe(entry, stamp.getValue().getTime());
+			}
+			collected.put(id, record);
+			buildReferenceMap(id, record.getReferences());
+			NodeReference reference = entry == null ? new NodeReference(getRoot(), id) : new NodeReference(entry);
+			Class<?> artifactClass = getArtifactClass(id, record);
+			// only if the recorded class is no longer available do we need the node itself
+			if (artifactClass == null && record.getArtifactClass() != null && reference.getNode() != null) {
+				artifactClass = reference.getNode().getArtifactClass();
+			}
+			getTypeIndex().add(id, reference, artifactClass);
+			// the managers need their artifact to generate the children, so their entry is always needed
+			if (record.isRepositoryManager()) {
+				if (entry == null) {
+					entry = EAIRepositoryUtils.getEntry(getRoot(), id);
+				}
+				if (entry instanceof ModifiableEntry) {
+					artifactRepositoryManagers.add(entry);
 				}
-				dependencies.get(reference).add(id);
 			}
 		}
+		return artifactRepositoryManagers;
 	}
-	private void unbuildReferenceMap(String id) {
-		this.references.remove(id);
-		for (String dependency : dependencies.keySet()) {
-			if (dependencies.get(dependency).contains(id)) {
-				dependencies.get(dependency).remove(id);
+	
+	private static class LoadResult {
+		private Map<String, RepositorySnapshot.Record> records = new HashMap<String, RepositorySnapshot.Record>();
+		private List<Entry> nodes = new ArrayList<Entry>();
+		private List<Entry> artifactRepositoryManagers = new ArrayList<Entry>();
+		
+		private void merge(LoadResult result) {
+			records.putAll(result.records);
+			nodes.addAll(result.nodes);
+			artifactRepositoryManagers.addAll(result.artifactRepositoryManagers);
+		}
+	}
+	
+	private class LoadTask extends RecursiveTask<LoadResult> {
+		private static final long serialVersionUID = 1L;
+		private Entry entry;
+
+		private LoadTask(Entry entry) {
+			this.entry = entry;
+		}
+		
+		@Override
+		protected LoadResult compute() {
+			LoadResult result = new LoadResult();
+			if (entry.isNode()) {
+				logger.info("Loading entry: " + entry.getId());
+				RepositorySnapshot.Record record = describe(entry);
+				result.records.put(entry.getId(), record);
+				result.nodes.add(entry);
+				if (entry instanceof ModifiableEntry && record.isRepositoryManager()) {
+					result.artifactRepositoryManagers.add(entry);
+				}
 			}
+			if (!entry.isLeaf()) {
+				List<LoadTask> tasks = new ArrayList<LoadTask>();
+				for (Entry child : entry) {
+					tasks.add(new LoadTask(child));
+				}
+				invokeAll(tasks);
+				// merge in the original order so the managers are loaded in the same order as a sequential load
+				for (LoadTask task : tasks) {
+					result.merge(task.join());
+				}
+			}
+			return result;
 		}
 	}
 	
-	private void load(Entry entry, List<Entry> artifactRepositoryManagers) {
-		// don't refresh on initial load, this messes up performance for remote file systems
-		if (!isLoading) {
-			// refresh every entry before reloading it, there could be new elements (e.g. remote changes to repo)
+	// the cached artifacts are invalidated once the write is published, null invalidates all of them
+	private void invalidateArtifacts(String id) {
+		if (id == null) {
+			pendingInvalidations = null;
+		}
+		else if (pendingInvalidations != null) {
+			pendingInvalidations.add(id);
+		}
+	}
+	
+	public int getArtifactCacheSize() {
+		return artifactCacheSize;
+	}
+
+	/**
+	 * The amount of resolved artifacts that are kept by id, beyond that they are only softly referenced and parsed again once they are reclaimed
+	 */
+	public void setArtifactCacheSize(int artifactCacheSize) {
+		this.artifactCacheSize = artifactCacheSize;
+		this.artifacts = new ArtifactCache(artifactCacheSize);
+	}
+
+	/**
+	 * Describes the node, during the initial load this is taken from the snapshot if the node has not been modified since
+	 */
+	private RepositorySnapshot.Record describe(Entry entry) {
+		return describe(entry, collected == null ? -1 : getStamp(entry));
+	}
+	
+	private RepositorySnapshot.Record describe(Entry entry, long stamp) {
+		RepositorySnapshot snapshot = this.snapshot, collected = this.collected;
+		RepositorySnapshot.Record record = snapshot == null || stamp < 0 ? null : snapshot.get(entry.getId());
+		if (record != null && record.getStamp() == stamp) {
+			reused.incrementAndGet();
+		}
+		else {
+			Node node = entry.getNode();
+			Class<?> artifactManager = node.getArtifactManager();
+			record = new RepositorySnapshot.Record(stamp, node.getArtifactClass() == null ? null : node.getArtifactClass().getName(), node.getReferences(), artifactManager != null && ArtifactRepositoryManager.class.isAssignableFrom(artifactManager));
+		}
+		if (collected != null && stamp >= 0) {
+			collected.put(entry.getId(), record);
+		}
+		return record;
+	}
+	
+	private Class<?> getArtifactClass(Entry entry, RepositorySnapshot.Record record) {
+		Class<?> artifactClass = getArtifactClass(entry.getId(), record);
+		return artifactClass == null ? entry.getNode().getArtifactClass() : artifactClass;
+	}
+	
+	// the class as it is recorded, null if it can not be loaded
+	private Class<?> getArtifactClass(String id, RepositorySnapshot.Record record) {
+		if (record.getArtifactClass() != null) {
+			Class<?> artifactClass = artifactClasses.get(record.getArtifactClass());
+			if (artifactClass == null) {
+				try {
+					artifactClass = getClassLoader().loadClass(record.getArtifactClass());
+					artifactClasses.put(record.getArtifactClass(), artifactClass);
+				}
+				catch (ClassNotFoundException e) {
+					logger.warn("Could not load artifact class " + record.getArtifactClass() + " for: " + id);
+				}
+			}
+			return artifactClass;
+		}
+		return null;
+	}
+	
+	// lists the closest remote entry that exists for the id, null if there is none
+	private Listing getListing(String id) {
+		Entry entry = EAIRepositoryUtils.getEntry(getRoot(), id);
+		while (entry == null && id.contains(".")) {
+			id = id.substring(0, id.lastIndexOf('.'));
+			entry = EAIRepositoryUtils.getEntry(getRoot(), id);
+		}
+		return entry == null ? null : getListing(entry);
+	}
+	
+	// one listing of the remote subtree, null if it is not available
+	private Listing getListing(Entry entry) {
+		if (repositoryListing != null) {
+			MetricTimer timer = startTimer(METRIC_REMOTE_LISTING);
+			try {
+				return new Listing(entry.getId(), repositoryListing.list(entry.getParent() == null ? null : entry.getId()));
+			}
+			catch (Exception e) {
+				logger.warn("Could not list the remote entries of " + entry.getId() + ", refreshing all of them", e);
+			}
+			finally {
+				stopTimer(timer);
+			}
+		}
+		return null;
+	}
+	
+	// every refresh lists the remote container
+	private void refresh(Entry entry) {
+		MetricTimer timer = startTimer(METRIC_REMOTE_REFRESH);
+		try {
 			entry.refresh(false);
-			// reset this to make sure any newly loaded entries are picked up or old entries are deleted
-			reset();
+		}
+		finally {
+			stopTimer(timer);
+		}
+	}
+	
+	// an entry only needs to be refreshed if its own node or its list of children changed remotely
+	private boolean needsRefresh(Entry entry, Listing listing) {
+		if (listing == null) {
+			return true;
 		}
 		if (entry.isNode()) {
-			logger.info("Loading entry: " + entry.getId());
-			buildReferenceMap(entry.getId(), entry.getNode().getReferences());
-			if (entry instanceof ModifiableEntry && entry.isNode() && entry.getNode().getArtifactManager() != null && ArtifactRepositoryManager.class.isAssignableFrom(entry.getNode().getArtifactManager())) {
-				artifactRepositoryManagers.add(entry);
+			// a loaded artifact is only discarded by a refresh
+			if (entry.getNode().isLoaded()) {
+				return true;
+			}
+			Date lastModified = listing.stamps.get(entry.getId());
+			if (entry instanceof ResourceEntry && (lastModified == null ? -1 : lastModified.getTime()) != getStamp(entry)) {
+				return true;
 			}
 		}
+		Set<String> children = new HashSet<String>();
 		if (!entry.isLeaf()) {
 			for (Entry child : entry) {
-				load(child, artifactRepositoryManagers);
+				children.add(child.getId());
+			}
+		}
+		Set<String> remoteChildren = listing.children.get(entry.getParent() == null ? "" : entry.getId());
+		return !children.equals(remoteChildren == null ? Collections.<String>emptySet() : remoteChildren);
+	}
+	
+	// the last modified of every remote entry in a subtree, grouped by parent
+	private static class Listing {
+		// the id of the entry that was listed
+		private String id;
+		private Map<String, Date> stamps;
+		private Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+		
+		private Listing(String id, Map<String, Date> stamps) {
+			this.id = id;
+			this.stamps = stamps;
+			for (String id : stamps.keySet()) {
+				int index = id.lastIndexOf('.');
+				String parent = index < 0 ? "" : id.substring(0, index);
+				Set<String> set = children.get(parent);
+				if (set == null) {
+					set = new HashSet<String>();
+					children.put(parent, set);
+				}
+				set.add(id);
+			}
+		}
+		
+		private boolean hasStamps() {
+			for (Date stamp : stamps.values()) {
+				if (stamp != null) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	// the modification stamp of the node description, -1 if it is not available
+	private long getStamp(Entry entry) {
+		if (entry instanceof ResourceEntry) {
+			Resource resource = ((ResourceEntry) entry).getContainer().getChild("node.xml");
+			if (resource instanceof TimestampedResource && ((TimestampedResource) resource).getLastModified() != null) {
+				return ((TimestampedResource) resource).getLastModified().getTime();
 			}
 		}
+		return -1;
 	}
 	
-	private void reset() {
-		nodesByType = null;
+	public File getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	/**
+	 * If set, the remote structure is persisted to this file so the next start only needs to read the nodes that have changed
+	 */
+	public void setSnapshotFile(File snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+
+	public int getLoadParallelism() {
+		return loadParallelism;
+	}
+
+	public void setLoadParallelism(int loadParallelism) {
+		this.loadParallelism = loadParallelism;
 	}
 	
+	public RepositoryListing getRepositoryListing() {
+		return repositoryListing;
+	}
+	/**
+	 * When set, a reload lists the remote subtree once and only refreshes the entries that changed instead of refreshing every entry
+	 */
+	public void setRepositoryListing(RepositoryListing repositoryListing) {
+		this.repositoryListing = repositoryListing;
+	}
+
 	private void load(Entry entry) {
+		load(entry, (Listing) null);
+	}
+	
+	private void load(Entry entry, Listing listing) {
 		logger.info("Loading: " + entry.getId());
-		List<Entry> artifactRepositoryManagers = new ArrayList<Entry>();
-		load(entry, artifactRepositoryManagers);
-		// first load the repositories without dependencies
-		for (Entry manager : artifactRepositoryManagers) {
-			if (manager.getNode().getReferences() == null || manager.getNode().getReferences().isEmpty()) {
-				loadArtifactManager(manager);
+		List<Entry> artifactRepositoryManagers;
+		// the initial load does not refresh so it only reads, this allows us to walk sibling trees at the same time
+		if (isLoading && loadParallelism > 1) {
+			artifactRepositoryManagers = loadInParallel(entry);
+		}
+		else {
+			artifactRepositoryManagers = new ArrayList<Entry>();
+			load(entry, artifactRepositoryManagers, listing);
+		}
+		loadArtifactManagers(artifactRepositoryManagers);
+	}
+	
+	private void loadArtifactManagers(List<Entry> managers) {
+		if (managers.isEmpty()) {
+			return;
+		}
+		MetricTimer timer = startTimer(METRIC_LOAD_MANAGERS);
+		try {
+			List<List<Entry>> waves = getWaves(managers);
+			if (loadParallelism <= 1 || waves.size() == managers.size()) {
+				for (List<Entry> wave : waves) {
+					for (Entry manager : wave) {
+						addGeneratedChildren(loadArtifactManager(manager));
+					}
+				}
+			}
+			else {
+				ExecutorService pool = Executors.newFixedThreadPool(Math.min(loadParallelism, managers.size()), new DaemonThreadFactory("remote-repository-managers"));
+				try {
+					for (List<Entry> wave : waves) {
+						List<Future<List<Entry>>> futures = new ArrayList<Future<List<Entry>>>();
+						for (final Entry manager : wave) {
+							futures.add(pool.submit(new Callable<List<Entry>>() {
+								@Override
+								public List<Entry> call() {
+									helpers.add(Thread.currentThread());
+									try {
+										return loadArtifactManager(manager);
+									}
+									finally {
+										helpers.remove(Thread.currentThread());
+									}
+								}
+							}));
+						}
+						// wait for the entire wave before touching the indexes, they are only updated by the thread holding the write lock
+						List<List<Entry>> generated = new ArrayList<List<Entry>>();
+						for (Future<List<Entry>> future : futures) {
+							try {
+								generated.add(future.get());
+							}
+							catch (Exception e) {
+								logger.error("Could not finish loading generated children", e);
+							}
+						}
+						// the next wave only starts once they are merged
+						for (List<Entry> children : generated) {
+							addGeneratedChildren(children);
+						}
+					}
+				}
+				finally {
+					pool.shutdown();
+				}
+			}
+		}
+		finally {
+			stopTimer(timer);
+		}
+	}
+	
+	/**
+	 * Groups the managers in waves, a manager only comes after the managers it references (directly or through one of their generated children).
+	 * The managers in a single wave are independent of one another.
+	 */
+	private List<List<Entry>> getWaves(List<Entry> managers) {
+		Map<String, Entry> byId = new LinkedHashMap<String, Entry>();
+		for (Entry manager : managers) {
+			byId.put(manager.getId(), manager);
+		}
+		Map<String, Set<String>> required = new HashMap<String, Set<String>>();
+		for (Entry manager : managers) {
+			Set<String> set = new HashSet<String>();
+			List<String> references = manager.getNode().getReferences();
+			if (references != null) {
+				for (String reference : references) {
+					// the closest manager that contains the reference
+					String candidate = reference;
+					while (candidate != null) {
+						if (byId.containsKey(candidate)) {
+							if (!candidate.equals(manager.getId())) {
+								set.add(candidate);
+							}
+							break;
+						}
+						int index = candidate.lastIndexOf('.');
+						candidate = index < 0 ? null : candidate.substring(0, index);
+					}
+				}
 			}
+			required.put(manager.getId(), set);
 		}
-		// then the rest
-		for (Entry manager : artifactRepositoryManagers) {
-			if (manager.getNode().getReferences() != null && !manager.getNode().getReferences().isEmpty()) {
-				loadArtifactManager(manager);
+		List<List<Entry>> waves = new ArrayList<List<Entry>>();
+		Set<String> done = new HashSet<String>();
+		Set<String> todo = new LinkedHashSet<String>(byId.keySet());
+		while (!todo.isEmpty()) {
+			List<Entry> wave = new ArrayList<Entry>();
+			for (String id : todo) {
+				if (done.containsAll(required.get(id))) {
+					wave.add(byId.get(id));
+				}
+			}
+			if (wave.isEmpty()) {
+				// there is no correct order for a cycle, load the rest one by one in the original order
+				logger.warn("Circular references detected between artifact repository managers: " + todo);
+				for (String id : todo) {
+					waves.add(Arrays.asList(byId.get(id)));
+				}
+				break;
+			}
+			for (Entry manager : wave) {
+				todo.remove(manager.getId());
+				done.add(manager.getId());
+			}
+			waves.add(wave);
+		}
+		return waves;
+	}
+	
+	private void addGeneratedChildren(List<Entry> addedChildren) {
+		if (addedChildren != null) {
+			for (Entry addedChild : addedChildren) {
+				buildReferenceMap(addedChild.getId(), addedChild.getNode().getReferences());
+				if (addedChild.isNode()) {
+					getTypeIndex().add(addedChild.getId(), addedChild);
+				}
 			}
 		}
 	}
 	
 	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private void loadArtifactManager(Entry entry) {
+	private List<Entry> loadArtifactManager(Entry entry) {
 		logger.debug("Loading children of: " + entry.getId());
 		try {
 			Artifact artifact = entry.getNode().getArtifact();
 			if (artifact != null) {
-				List<Entry> addedChildren = ((ArtifactRepositoryManager) entry.getNode().getArtifactManager().newInstance()).addChildren((ModifiableEntry) entry, artifact);
-				if (addedChildren != null) {
-					for (Entry addedChild : addedChildren) {
-						buildReferenceMap(addedChild.getId(), addedChild.getNode().getReferences());
-					}
-				}
+				return ((ArtifactRepositoryManager) entry.getNode().getArtifactManager().newInstance()).addChildren((ModifiableEntry) entry, artifact);
 			}
 		}
 		catch (Exception e) {
 			logger.error("Could not finish loading generated children for: " + entry.getId(), e);
 		}
+		return null;
 	}
 
 	@Override
@@ -348,13 +983,63 @@ public class RemoteRepository implements ResourceRepository {
 
 	@Override
 	public Artifact resolve(String id) {
-		Artifact resolve = EAIRepositoryUtils.resolve(this, id);
-		if (resolve == null && allowLocalLookup && (localLookupRegex == null || id.matches(localLookupRegex))) {
+		boolean localLookup = isLocalLookup(id);
+		Artifact resolve = null;
+		if (!localLookup || !router.isRemoteMiss(id)) {
+			resolve = resolveRemote(id, null);
+			if (resolve == null && localLookup && EAIRepositoryUtils.getEntry(getRoot(), id) == null) {
+				router.addRemoteMiss(id);
+			}
+		}
+		if (resolve == null && localLookup) {
+			increment(METRIC_LOCAL_LOOKUP);
 			resolve = local.resolve(id);
 		}
 		return resolve;
 	}
 
+	// resolves the artifact through the cache, if no reference is given the entry is looked up in the tree
+	private Artifact resolveRemote(String id, NodeReference reference) {
+		// the generation is taken before the lookup so an invalidation in the meantime prevents us from caching it
+		ArtifactCache artifacts = this.artifacts;
+		long generation = artifacts.getGeneration();
+		Artifact resolve = artifacts.get(id);
+		increment(resolve == null ? METRIC_ARTIFACT_CACHE_MISS : METRIC_ARTIFACT_CACHE_HIT);
+		if (resolve == null) {
+			Entry entry = reference == null ? EAIRepositoryUtils.getEntry(getRoot(), id) : reference.getEntry();
+			if (entry != null && entry.isNode()) {
+				try {
+					resolve = parse(entry);
+					if (resolve != null) {
+						resolve = artifacts.put(id, resolve, generation);
+					}
+				}
+				catch (Exception e) {
+					logger.error("Could not resolve: " + id, e);
+				}
+			}
+		}
+		return resolve;
+	}
+	
+	/**
+	 * The artifact is parsed without attaching it to the node, otherwise the node would keep it in memory regardless of the cache.
+	 * Generated entries have no content of their own and artifacts that are already loaded in their node (e.g. repository managers) are used as they are.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Artifact parse(Entry entry) throws Exception {
+		Node node = entry.getNode();
+		if (node.isLoaded() || !(entry instanceof ResourceEntry) || node.getArtifactManager() == null) {
+			return node.getArtifact();
+		}
+		List<Validation<?>> messages = new ArrayList<Validation<?>>();
+		Artifact artifact = (Artifact) ((ArtifactManager) node.getArtifactManager().newInstance()).load((ResourceEntry) entry, messages);
+		if (!messages.isEmpty()) {
+			logger.warn("Parsing " + entry.getId() + " reported: " + messages);
+		}
+		return artifact;
+	}
+
 	@Override
 	public ExecutionContext newExecutionContext(Token primary, Token...alternatives) {
 		return local.newExecutionContext(primary, alternatives);
@@ -375,42 +1060,6 @@ public class RemoteRepository implements ResourceRepository {
 		return local.isValidName(parent, name);
 	}
 	
-	private void scanForTypes() {
-		if (nodesByType == null) {
-			synchronized(this) {
-				if (nodesByType == null) {
-					nodesByType = new HashMap<Class<? extends Artifact>, Map<String, Node>>();
-				}
-			}
-		}
-		synchronized(nodesByType) {
-			nodesByType.clear();
-			scanForTypes(getRoot());
-		}
-	}
-	
-	private void scanForTypes(Entry entry) {
-		if (nodesByType == null) {
-			synchronized(this) {
-				nodesByType = new HashMap<Class<? extends Artifact>, Map<String, Node>>();
-			}
-		}
-		synchronized(nodesByType) {
-			for (Entry child : entry) {
-				if (child.isNode()) {
-					Class<? extends Artifact> artifactClass = child.getNode().getArtifactClass();
-					if (!nodesByType.containsKey(artifactClass)) {
-						nodesByType.put(artifactClass, new HashMap<String, Node>());
-					}
-					nodesByType.get(artifactClass).put(child.getId(), child.getNode());
-				}
-				if (!child.isLeaf()) {
-					scanForTypes(child);
-				}
-			}
-		}
-	}
-
 //	@SuppressWarnings("unchecked")
 //	@Override
 //	public <T extends Artifact> List<T> getArtifacts(Class<T> artifactClazz) {
@@ -447,29 +1096,49 @@ public class RemoteRepository implements ResourceRepository {
 	
 	@Override
 	public void reloadAll() {
-		unload(getRoot());
-		references.clear();
-		dependencies.clear();
-		reset();
-		load(getRoot());
+		MetricTimer timer = startTimer(METRIC_RELOAD_ALL);
+		router.invalidate();
+		Listing listing = getListing(getRoot());
+		beginWrite();
+		boolean succeeded = false;
+		try {
+			unload(getRoot(), listing);
+			getReferenceGraph().clear();
+			getTypeIndex().clear();
+			invalidateArtifacts(null);
+			load(getRoot(), listing);
+			succeeded = true;
+		}
+		finally {
+			endWrite(succeeded);
+			stopTimer(timer);
+		}
 	}
 
 	@Override
 	public MetricInstance getMetricInstance(String id) {
-		return null;
+		// the remote artifacts get their own instances, they should not be mixed with the local artifacts that have the same id
+		return metricsId == null ? null : local.getMetricInstance(metricsId + ":" + id);
 	}
 
 	@Override
 	public void reloadAll(Collection<String> ids) {
 		getEventDispatcher().fire(new RepositoryEvent(RepositoryState.RELOAD, false), this);
-		Set<String> dependenciesToReload = new HashSet<String>();
-		for (String id : ids) {
-			Set<String> calculateDependenciesToReload = calculateDependenciesToReload(id);
-			dependenciesToReload.removeAll(calculateDependenciesToReload);
-			dependenciesToReload.addAll(calculateDependenciesToReload);
+		MetricTimer timer = startTimer(METRIC_RELOAD_IDS);
+		beginWrite();
+		boolean succeeded = false;
+		try {
+			MetricTimer dependencyTimer = startTimer(METRIC_CALCULATE_DEPENDENCIES);
+			List<String> dependenciesToReload = getReferenceGraph().getDependenciesToReload(ids);
+			stopTimer(dependencyTimer);
+			for (String id : dependenciesToReload) {
+				reload(id, false);
+			}
+			succeeded = true;
 		}
-		for (String id : dependenciesToReload) {
-			reload(id, false);
+		finally {
+			endWrite(succeeded);
+			stopTimer(timer);
 		}
 		EAIResourceRepository.getInstance().reattachMavenArtifacts(root);
 		getEventDispatcher().fire(new RepositoryEvent(RepositoryState.RELOAD, true), this);
@@ -478,47 +1147,76 @@ public class RemoteRepository implements ResourceRepository {
 	@SuppressWarnings("unchecked")
 	@Override
 	public <T> List<T> getArtifacts(Class<T> ifaceClass) {
-		List<T> results = new ArrayList<T>();
-		if (nodesByType == null) {
-			scanForTypes();
-		}
-		for (Class<?> clazz : nodesByType.keySet()) {
-			if (ifaceClass.isAssignableFrom(clazz)) {
-				for (Node node : nodesByType.get(clazz).values()) {
-					try {
-						Artifact artifact = node.getArtifact();
-						if (artifact != null) {
-							results.add((T) artifact);
-						}
-					}
-					catch (Exception e) {
-						logger.error("Could not load artifact", e);
-					}
+		MetricTimer timer = startTimer(METRIC_GET_ARTIFACTS);
+		try {
+			List<T> results = new ArrayList<T>();
+			// only the nodes are cached per interface, the artifacts go through the artifact cache so they can be reclaimed
+			for (Map.Entry<String, NodeReference> node : getTypeIndex().getNodes(ifaceClass).entrySet()) {
+				Artifact artifact = resolveRemote(node.getKey(), node.getValue());
+				if (artifact != null) {
+					results.add((T) artifact);
 				}
 			}
-		}
-		if (allowLocalLookup) {
-			List<String> ids = new ArrayList<String>();
-			for (T artifact : results) {
-				if (artifact instanceof Artifact) {
-					ids.add(((Artifact) artifact).getId());
+			if (allowLocalLookup) {
+				Set<String> ids = new HashSet<String>();
+				for (T artifact : results) {
+					if (artifact instanceof Artifact) {
+						ids.add(((Artifact) artifact).getId());
+					}
 				}
-			}
-			for (T artifact : local.getArtifacts(ifaceClass)) {
-				if (!(artifact instanceof Artifact) || !ids.contains(((Artifact) artifact).getId())) {
-					if (localLookupRegex == null || ((Artifact) artifact).getId().matches(localLookupRegex)) {
+				for (T artifact : local.getArtifacts(ifaceClass)) {
+					if (!(artifact instanceof Artifact)) {
+						results.add(artifact);
+					}
+					else if (!ids.contains(((Artifact) artifact).getId()) && router.matches(((Artifact) artifact).getId())) {
 						results.add(artifact);
 					}
 				}
 			}
+			return results;
+		}
+		finally {
+			stopTimer(timer);
 		}
-		return results;
 	}
 
 	@Override
 	public EventDispatcher getMetricsDispatcher() {
-		// no metrics for remote repository
-		return null;
+		// the metrics end up with those of the local repository
+		return local.getMetricsDispatcher();
+	}
+	
+	// the metrics of this repository are grouped under a single instance, they are disabled if the local repository has no metrics
+	private MetricInstance getMetrics() {
+		return metricsId == null ? null : local.getMetricInstance(metricsId);
+	}
+	
+	private MetricTimer startTimer(String metric) {
+		MetricInstance metrics = getMetrics();
+		return metrics == null ? null : metrics.start(metric);
+	}
+	
+	private void stopTimer(MetricTimer timer) {
+		if (timer != null) {
+			timer.stop();
+		}
+	}
+	
+	private void increment(String metric) {
+		MetricInstance metrics = getMetrics();
+		if (metrics != null) {
+			metrics.increment(metric, 1);
+		}
+	}
+	
+	public String getMetricsId() {
+		return metricsId;
+	}
+	/**
+	 * The id of the metric instance the timers and counters of this repository are published on, set to null to disable them
+	 */
+	public void setMetricsId(String metricsId) {
+		this.metricsId = metricsId;
 	}
 
 	public String getLocalLookupRegex() {
@@ -527,6 +1225,7 @@ public class RemoteRepository implements ResourceRepository {
 
 	public void setLocalLookupRegex(String localLookupRegex) {
 		this.localLookupRegex = localLookupRegex;
+		router.setRegex(localLookupRegex);
 	}
 
 	@Override
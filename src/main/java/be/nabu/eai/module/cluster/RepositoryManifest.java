@@ -0,0 +1,273 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.nabu.eai.repository.api.Entry;
+import be.nabu.eai.repository.api.Repository;
+import be.nabu.eai.repository.api.ResourceEntry;
+import be.nabu.eai.repository.events.NodeEvent;
+import be.nabu.libs.events.api.EventHandler;
+import be.nabu.libs.events.api.EventSubscription;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.TimestampedResource;
+import be.nabu.utils.io.IOUtils;
+
+/**
+ * Keeps track of when the entries were last loaded by this server, their content hashes are only calculated when a manifest is requested.
+ * This allows a peer to calculate which entries actually differ and only reload those.
+ * A hash is only reported if the content was not modified after it was loaded, otherwise we no longer know what is in memory and the entry is reported as changed.
+ */
+public class RepositoryManifest {
+
+	// never matches an actual hash so a peer always considers the entry changed
+	static final String CHANGED = "changed";
+	
+	private static RepositoryManifest instance = new RepositoryManifest();
+	
+	private Map<String, Loaded> loaded = new ConcurrentHashMap<String, Loaded>();
+	private Repository repository;
+	private EventSubscription<NodeEvent, Void> subscription;
+	// everything that was not reloaded since, was loaded when we started
+	private volatile long started = Long.MAX_VALUE;
+	
+	public static RepositoryManifest getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Should be called once the repository is fully loaded, what is on disk at that point is what was loaded.
+	 * From then on we keep track of when nodes are (re)loaded.
+	 */
+	public synchronized void start(Repository repository) {
+		if (subscription == null) {
+			this.repository = repository;
+			subscription = repository.getEventDispatcher().subscribe(NodeEvent.class, new EventHandler<NodeEvent, Void>() {
+				@Override
+				public Void handle(NodeEvent event) {
+					if (event.isDone()) {
+						record(event.getId());
+					}
+					return null;
+				}
+			});
+			loaded.clear();
+			started = System.currentTimeMillis();
+		}
+	}
+	
+	// the node was just loaded, reloaded or unloaded
+	private void record(String id) {
+		Entry entry = repository.getEntry(id);
+		if (entry == null || !entry.isNode()) {
+			remove(id);
+		}
+		else {
+			loaded.put(id, new Loaded(System.currentTimeMillis(), null));
+		}
+	}
+	
+	/**
+	 * Returns the hashes of all the nodes in the given entry as they were last loaded, if the manifest was never started the current content is used
+	 */
+	public Map<String, String> getLoaded(Entry entry) throws IOException {
+		Map<String, String> result = new TreeMap<String, String>();
+		getLoaded(entry, result);
+		return result;
+	}
+	
+	private void getLoaded(Entry entry, Map<String, String> result) throws IOException {
+		if (entry.isNode() && entry instanceof ResourceEntry) {
+			result.put(entry.getId(), getHash(entry));
+		}
+		if (!entry.isLeaf()) {
+			for (Entry child : entry) {
+				getLoaded(child, result);
+			}
+		}
+	}
+	
+	private String getHash(Entry entry) throws IOException {
+		Loaded current = loaded.get(entry.getId());
+		long loadedAt = current == null ? started : current.loadedAt;
+		if (getLastModified(entry, ((ResourceEntry) entry).getContainer()) > loadedAt) {
+			return CHANGED;
+		}
+		if (current != null && current.hash != null) {
+			return current.hash;
+		}
+		String hash = hash(entry);
+		Loaded calculated = new Loaded(loadedAt, hash);
+		// if the entry was reloaded in the meantime, the hash is not cached as it may belong to the previous version
+		if (current == null) {
+			loaded.putIfAbsent(entry.getId(), calculated);
+		}
+		else {
+			loaded.replace(entry.getId(), current, calculated);
+		}
+		return hash;
+	}
+	
+	/**
+	 * Removes the id and everything below it, should be called when the entry no longer exists
+	 */
+	public void remove(String id) {
+		for (String loadedId : new ArrayList<String>(loaded.keySet())) {
+			if (isPart(loadedId, id)) {
+				loaded.remove(loadedId);
+			}
+		}
+	}
+	
+	/**
+	 * Should be called after the entry was reloaded, everything in it is what is in memory now
+	 */
+	public void update(Entry entry) {
+		remove(entry.getId());
+		update(entry, System.currentTimeMillis());
+	}
+	
+	private void update(Entry entry, long loadedAt) {
+		if (entry.isNode()) {
+			loaded.put(entry.getId(), new Loaded(loadedAt, null));
+		}
+		if (!entry.isLeaf()) {
+			for (Entry child : entry) {
+				update(child, loadedAt);
+			}
+		}
+	}
+	
+	public static Map<String, String> calculate(Entry entry) throws IOException {
+		Map<String, String> hashes = new TreeMap<String, String>();
+		calculate(entry, hashes);
+		return hashes;
+	}
+	
+	private static void calculate(Entry entry, Map<String, String> hashes) throws IOException {
+		String hash = hash(entry);
+		if (hash != null) {
+			hashes.put(entry.getId(), hash);
+		}
+		if (!entry.isLeaf()) {
+			for (Entry child : entry) {
+				calculate(child, hashes);
+			}
+		}
+	}
+	
+	// the hash of a single node, without its child entries
+	private static String hash(Entry entry) throws IOException {
+		// generated entries have no content of their own, they are reloaded along with their parent
+		if (entry.isNode() && entry instanceof ResourceEntry) {
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				digest(entry, ((ResourceEntry) entry).getContainer(), digest);
+				return toHex(digest.digest());
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return null;
+	}
+	
+	private static void digest(Entry entry, ResourceContainer<?> container, MessageDigest digest) throws IOException {
+		List<Resource> children = new ArrayList<Resource>();
+		for (Resource child : container) {
+			children.add(child);
+		}
+		// the order in which a container lists its children is not guaranteed
+		Collections.sort(children, new Comparator<Resource>() {
+			@Override
+			public int compare(Resource o1, Resource o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+		for (Resource child : children) {
+			// child entries are hashed separately
+			if (child instanceof ResourceContainer && (entry == null || entry.getChild(child.getName()) == null)) {
+				digest.update(child.getName().getBytes("UTF-8"));
+				digest(null, (ResourceContainer<?>) child, digest);
+			}
+			else if (child instanceof ReadableResource) {
+				digest.update(child.getName().getBytes("UTF-8"));
+				InputStream input = IOUtils.toInputStream(((ReadableResource) child).getReadable());
+				try {
+					byte [] buffer = new byte[8192];
+					int read;
+					while ((read = input.read(buffer)) > 0) {
+						digest.update(buffer, 0, read);
+					}
+				}
+				finally {
+					input.close();
+				}
+			}
+		}
+	}
+	
+	// the most recent modification of the resources of a single node, without its child entries
+	private static long getLastModified(Entry entry, ResourceContainer<?> container) {
+		long lastModified = 0;
+		for (Resource child : container) {
+			if (child instanceof ResourceContainer && (entry == null || entry.getChild(child.getName()) == null)) {
+				lastModified = Math.max(lastModified, getLastModified(null, (ResourceContainer<?>) child));
+			}
+			else if (child instanceof TimestampedResource && ((TimestampedResource) child).getLastModified() != null) {
+				lastModified = Math.max(lastModified, ((TimestampedResource) child).getLastModified().getTime());
+			}
+		}
+		return lastModified;
+	}
+	
+	static boolean isPart(String id, String parentId) {
+		return parentId == null || parentId.isEmpty() || id.equals(parentId) || id.startsWith(parentId + ".");
+	}
+	
+	private static String toHex(byte [] bytes) {
+		StringBuilder builder = new StringBuilder();
+		for (byte single : bytes) {
+			builder.append(String.format("%02x", single & 0xff));
+		}
+		return builder.toString();
+	}
+	
+	private static class Loaded {
+		private long loadedAt;
+		private String hash;
+		
+		private Loaded(long loadedAt, String hash) {
+			this.loadedAt = loadedAt;
+			this.hash = hash;
+		}
+	}
+}
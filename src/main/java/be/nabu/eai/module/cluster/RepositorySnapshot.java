@@ -0,0 +1,192 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A binary snapshot of what we know about each node of a remote repository (references, type...) along with the modification stamp it was calculated for.
+ * On the next start only the nodes whose stamp has changed need to be read remotely.
+ * 
+ * The format is: magic, version, record count and then for each record: id, stamp, artifact class, repository manager flag, references.
+ * Strings are stored as a length followed by the UTF-8 bytes, a length of -1 means null.
+ */
+class RepositorySnapshot {
+	
+	private static final int MAGIC = 0x4e434c53, VERSION = 1;
+	// id, stamp, artifact class, repository manager flag and reference amount
+	private static final int RECORD_MIN_SIZE = 4 + 8 + 4 + 1 + 4;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private Map<String, Record> records = new ConcurrentHashMap<String, Record>();
+	
+	public Record get(String id) {
+		return records.get(id);
+	}
+	
+	public void put(String id, Record record) {
+		records.put(id, record);
+	}
+	
+	public int size() {
+		return records.size();
+	}
+	
+	/**
+	 * Returns null if there is no valid snapshot, a snapshot that can not be read for whatever reason is simply ignored
+	 */
+	public static RepositorySnapshot read(File file) {
+		try {
+			if (!file.isFile()) {
+				return null;
+			}
+			// read it in one go instead of mapping it, a mapped file can not be replaced (on some platforms) until the mapping is garbage collected
+			ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+			if (buffer.remaining() < 12 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				return null;
+			}
+			RepositorySnapshot snapshot = new RepositorySnapshot();
+			int amount = checkAmount(buffer, buffer.getInt(), RECORD_MIN_SIZE);
+			for (int i = 0; i < amount; i++) {
+				String id = readString(buffer);
+				long stamp = buffer.getLong();
+				String artifactClass = readString(buffer);
+				boolean repositoryManager = buffer.get() == 1;
+				int referenceAmount = checkAmount(buffer, buffer.getInt(), 4);
+				List<String> references = null;
+				if (referenceAmount >= 0) {
+					references = new ArrayList<String>(referenceAmount);
+					for (int j = 0; j < referenceAmount; j++) {
+						references.add(readString(buffer));
+					}
+				}
+				snapshot.put(id, new Record(stamp, artifactClass, references, repositoryManager));
+			}
+			return snapshot;
+		}
+		// an unreadable, truncated or otherwise corrupt file
+		catch (Exception e) {
+			return null;
+		}
+	}
+	
+	// an amount can never exceed what is left in the file, a corrupt amount would otherwise allocate huge lists
+	private static int checkAmount(ByteBuffer buffer, int amount, int minimumSize) throws IOException {
+		if (amount > buffer.remaining() / minimumSize) {
+			throw new IOException("Invalid amount: " + amount);
+		}
+		return amount;
+	}
+	
+	public void write(File file) throws IOException {
+		if (file.getParentFile() != null && !file.getParentFile().exists()) {
+			file.getParentFile().mkdirs();
+		}
+		// write to a temporary file first so a crash does not leave a half written snapshot
+		File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+		try {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(records.size());
+			for (Map.Entry<String, Record> entry : records.entrySet()) {
+				Record record = entry.getValue();
+				writeString(output, entry.getKey());
+				output.writeLong(record.getStamp());
+				writeString(output, record.getArtifactClass());
+				output.writeByte(record.isRepositoryManager() ? 1 : 0);
+				if (record.getReferences() == null) {
+					output.writeInt(-1);
+				}
+				else {
+					output.writeInt(record.getReferences().size());
+					for (String reference : record.getReferences()) {
+						writeString(output, reference);
+					}
+				}
+			}
+		}
+		finally {
+			output.close();
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+	
+	private static String readString(ByteBuffer buffer) throws IOException {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		else if (length > buffer.remaining()) {
+			throw new IOException("Invalid string length: " + length);
+		}
+		byte [] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+	
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		if (value == null) {
+			output.writeInt(-1);
+		}
+		else {
+			byte [] bytes = value.getBytes(UTF8);
+			output.writeInt(bytes.length);
+			output.write(bytes);
+		}
+	}
+	
+	public static class Record {
+		private long stamp;
+		private String artifactClass;
+		private List<String> references;
+		private boolean repositoryManager;
+		
+		public Record(long stamp, String artifactClass, List<String> references, boolean repositoryManager) {
+			this.stamp = stamp;
+			this.artifactClass = artifactClass;
+			this.references = references;
+			this.repositoryManager = repositoryManager;
+		}
+		
+		public long getStamp() {
+			return stamp;
+		}
+		public String getArtifactClass() {
+			return artifactClass;
+		}
+		public List<String> getReferences() {
+			return references;
+		}
+		public boolean isRepositoryManager() {
+			return repositoryManager;
+		}
+	}
+}
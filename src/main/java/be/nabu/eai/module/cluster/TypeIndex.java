@@ -0,0 +1,141 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.nabu.eai.repository.api.Entry;
+
+/**
+ * Keeps track of the nodes per artifact type, it is updated as entries are loaded and unloaded so it never needs a full scan of the tree
+ * Like the {@link ReferenceGraph} a published index is never modified, changes are made on a {@link #copy()} so readers don't need to lock.
+ */
+class TypeIndex {
+	
+	private Map<Class<?>, IdMap<NodeReference>> nodesByType = new HashMap<Class<?>, IdMap<NodeReference>>();
+	// split per subtree so we can efficiently remove an entire subtree
+	private IdMap<Class<?>> types = new IdMap<Class<?>>();
+	// the nodes per requested interface, the artifacts themselves are only kept by the artifact cache of the repository
+	private Map<Class<?>, Map<String, NodeReference>> nodesByInterface = new ConcurrentHashMap<Class<?>, Map<String, NodeReference>>();
+	// the node maps that were created by this index, the others are shared with the index we were copied from
+	private Set<IdMap<NodeReference>> owned = Collections.newSetFromMap(new IdentityHashMap<IdMap<NodeReference>, Boolean>());
+	
+	/**
+	 * Creates a new version of the index, it shares the buckets of the original and only the buckets that are modified in the copy are actually duplicated
+	 */
+	public TypeIndex copy() {
+		TypeIndex copy = new TypeIndex();
+		copy.nodesByType.putAll(nodesByType);
+		copy.types = types.copy();
+		copy.nodesByInterface.putAll(nodesByInterface);
+		return copy;
+	}
+	
+	private IdMap<NodeReference> getOwnedNodes(Class<?> type, boolean create) {
+		IdMap<NodeReference> nodes = nodesByType.get(type);
+		if (nodes == null ? create : !owned.contains(nodes)) {
+			nodes = nodes == null ? new IdMap<NodeReference>() : nodes.copy();
+			owned.add(nodes);
+			nodesByType.put(type, nodes);
+		}
+		return nodes;
+	}
+	
+	public void add(String id, Entry entry) {
+		add(id, new NodeReference(entry), entry.getNode().getArtifactClass());
+	}
+	
+	public void add(String id, NodeReference node, Class<?> type) {
+		remove(id);
+		if (type != null) {
+			getOwnedNodes(type, true).put(id, node);
+			types.put(id, type);
+			invalidate(type);
+		}
+	}
+	
+	public void remove(String id) {
+		Class<?> type = types.remove(id);
+		if (type != null) {
+			IdMap<NodeReference> nodes = getOwnedNodes(type, false);
+			if (nodes != null) {
+				nodes.remove(id);
+				if (nodes.isEmpty()) {
+					owned.remove(nodes);
+					nodesByType.remove(type);
+				}
+			}
+			invalidate(type);
+		}
+	}
+	
+	/**
+	 * Removes the id and everything below it
+	 */
+	public void removeTree(String id) {
+		remove(id);
+		for (String child : types.getChildren(id)) {
+			remove(child);
+		}
+	}
+	
+	public void clear() {
+		nodesByType.clear();
+		types.clear();
+		nodesByInterface.clear();
+		owned.clear();
+	}
+	
+	// only the interfaces that the changed type implements are affected
+	private void invalidate(Class<?> type) {
+		if (!nodesByInterface.isEmpty()) {
+			Iterator<Class<?>> iterator = nodesByInterface.keySet().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().isAssignableFrom(type)) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the nodes (by id) whose artifact implements the given interface, the result is read-only
+	 */
+	public Map<String, NodeReference> getNodes(Class<?> ifaceClass) {
+		Map<String, NodeReference> nodes = nodesByInterface.get(ifaceClass);
+		if (nodes == null) {
+			nodes = new LinkedHashMap<String, NodeReference>();
+			for (Map.Entry<Class<?>, IdMap<NodeReference>> entry : nodesByType.entrySet()) {
+				if (ifaceClass.isAssignableFrom(entry.getKey())) {
+					entry.getValue().copyTo(nodes);
+				}
+			}
+			nodes = Collections.unmodifiableMap(nodes);
+			// concurrent readers may calculate the same result, either one is correct
+			nodesByInterface.put(ifaceClass, nodes);
+		}
+		return nodes;
+	}
+}
@@ -0,0 +1,29 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster.api;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Lists an entire subtree of a repository in one go, the keys are the ids of all the entries below the given id (the id itself included if it is not the root)
+ * and the values are the last modified of the node (null for folders or if unknown)
+ */
+public interface RepositoryListing {
+	public Map<String, Date> list(String id) throws Exception;
+}
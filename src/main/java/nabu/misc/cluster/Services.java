@@ -23,25 +23,67 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jws.WebParam;
 import javax.jws.WebResult;
 import javax.jws.WebService;
 import javax.validation.constraints.NotNull;
 
+import nabu.misc.cluster.types.AsyncResult;
+import nabu.misc.cluster.types.BatchCall;
+import nabu.misc.cluster.types.BatchResult;
+import nabu.misc.cluster.types.BinaryResult;
+import nabu.misc.cluster.types.BroadcastResult;
+import nabu.misc.cluster.types.HostResult;
+import nabu.misc.cluster.types.ListingEntry;
+import nabu.misc.cluster.types.ManifestEntry;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import be.nabu.eai.module.cluster.AsyncInvocationRegistry;
+import be.nabu.eai.module.cluster.AsyncInvocationRegistry.AsyncCallback;
+import be.nabu.eai.module.cluster.AsyncInvocationRegistry.AsyncInvocation;
+import be.nabu.eai.module.cluster.BinaryContentCodec;
 import be.nabu.eai.module.cluster.ClusterArtifact;
+import be.nabu.eai.module.cluster.ClusterHostResult;
+import be.nabu.eai.module.cluster.ClusterServerListener;
+import be.nabu.eai.module.cluster.DaemonThreadFactory;
+import be.nabu.eai.module.cluster.MasterLease;
+import be.nabu.eai.module.cluster.PeerLoadBalancer;
+import be.nabu.eai.module.cluster.RepositoryManifest;
+import be.nabu.eai.module.cluster.api.HostAction;
 import be.nabu.eai.repository.EAIResourceRepository;
+import be.nabu.eai.repository.api.Entry;
+import be.nabu.eai.repository.api.ResourceEntry;
+import be.nabu.eai.repository.events.NodeEvent;
+import be.nabu.eai.repository.events.RepositoryEvent;
+import be.nabu.eai.repository.util.SystemPrincipal;
 import be.nabu.eai.server.Server;
 import be.nabu.eai.server.ServerConnection;
+import be.nabu.libs.authentication.api.Token;
+import be.nabu.libs.converter.ConverterFactory;
+import be.nabu.libs.events.api.EventHandler;
+import be.nabu.libs.events.api.EventSubscription;
+import be.nabu.libs.resources.api.Resource;
+import be.nabu.libs.resources.api.TimestampedResource;
 import be.nabu.libs.services.DefinedServiceResolverFactory;
 import be.nabu.libs.services.ListableServiceContext;
 import be.nabu.libs.services.api.DefinedService;
@@ -49,6 +91,7 @@ import be.nabu.libs.services.api.ExecutionContext;
 import be.nabu.libs.services.api.ServiceException;
 import be.nabu.libs.services.api.ServiceResult;
 import be.nabu.libs.services.api.ServiceRunner;
+import be.nabu.libs.types.ComplexContentWrapperFactory;
 import be.nabu.libs.types.api.ComplexContent;
 import be.nabu.libs.types.mask.MaskedContent;
 import be.nabu.utils.bully.BullyQueryOverview;
@@ -56,9 +99,34 @@ import be.nabu.utils.bully.BullyQueryOverview;
 @WebService
 public class Services {
 	
+	private static final long OWN_CLUSTER_VALIDATION_INTERVAL = 1000l*60;
+	private static final String BATCH_SERVICE = "nabu.misc.cluster.Services.executeBatch";
+	private static final String BINARY_SERVICE = "nabu.misc.cluster.Services.executeBinary";
+	private static final String WIRE_FORMATS_SERVICE = "nabu.misc.cluster.Services.getWireFormats";
+	// the deadline of a broadcast if none is given and the cluster has no socket timeout
+	private static final long BROADCAST_TIMEOUT = 1000l*60;
+	// how long the negotiated wire format of a host is trusted, it may be upgraded or replaced in the meantime
+	private static final long WIRE_FORMAT_TTL = 1000l*60*5;
+	
 	private static Logger logger = LoggerFactory.getLogger(Services.class);
+	private static volatile OwnCluster ownCluster;
+	// incremented on every reset, a calculation that started before a reset must not be cached
+	private static AtomicLong ownClusterGeneration = new AtomicLong();
+	private static ScheduledExecutorService ownClusterValidator;
+	private static Map<String, WireFormat> wireFormats = new ConcurrentHashMap<String, WireFormat>();
+	private static EventSubscription<RepositoryEvent, Void> subscription;
+	private static EventSubscription<NodeEvent, Void> nodeSubscription;
+	private static ExecutorService batchExecutor = newBatchExecutor();
 	private ExecutionContext executionContext;
 	
+	// parallel batches share a bounded pool so a large batch can not flood the server with threads, once the queue is full the calls run on the caller
+	private static ExecutorService newBatchExecutor() {
+		int size = Runtime.getRuntime().availableProcessors() * 4;
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(size * 4), new DaemonThreadFactory("cluster-batch"), new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
 	public Services() {
 		// auto construct
 	}
@@ -99,6 +167,26 @@ public class Services {
 		}
 	}
 	
+	/**
+	 * Returns the fencing token of the current master lease if this server is the master, otherwise null.
+	 * The token is advisory: it is only increasing on this server and is not agreed upon by the cluster.
+	 */
+	@WebResult(name = "token")
+	public Long getFencingToken() throws SocketException {
+		ClusterArtifact ownCluster = Services.getOwnCluster(executionContext);
+		if (ownCluster == null) {
+			return null;
+		}
+		MasterLease lease = ownCluster.getMasterLease();
+		return lease.isMaster() ? lease.getEpoch() : null;
+	}
+	
+	@WebResult(name = "valid")
+	public Boolean isValidFencingToken(@WebParam(name = "token") @NotNull Long token) throws SocketException {
+		ClusterArtifact ownCluster = Services.getOwnCluster(executionContext);
+		return ownCluster != null && ownCluster.isValidFencingToken(token);
+	}
+	
 	@WebResult(name = "started")
 	public Boolean scheduleElections() throws SocketException {
 		ClusterArtifact ownCluster = Services.getOwnCluster(executionContext);
@@ -109,9 +197,108 @@ public class Services {
 		return true;
 	}
 
+	/**
+	 * The own cluster is cached, it is recalculated when the repository is (re)loaded, when a cluster artifact changes or when the local addresses change
+	 */
 	public static ClusterArtifact getOwnCluster(ExecutionContext executionContext) throws SocketException {
+		OwnCluster cached = ownCluster;
+		if (cached == null || cached.generation != ownClusterGeneration.get()) {
+			synchronized(Services.class) {
+				cached = ownCluster;
+				if (cached == null || cached.generation != ownClusterGeneration.get()) {
+					subscribe();
+					long generation = ownClusterGeneration.get();
+					List<String> localAddresses = getLocalAddresses();
+					cached = new OwnCluster(calculateOwnCluster(executionContext, localAddresses), localAddresses, generation);
+					ownCluster = cached;
+				}
+			}
+		}
+		return cached.cluster;
+	}
+	
+	public static void resetOwnCluster() {
+		ownClusterGeneration.incrementAndGet();
+		ownCluster = null;
+	}
+	
+	// the binary fingerprints are cached, they are only valid as long as we are told about the changes to the repository
+	private static void watchTypes() {
+		if (subscription == null || nodeSubscription == null) {
+			synchronized(Services.class) {
+				subscribe();
+			}
+		}
+	}
+	
+	private static void subscribe() {
+		if (subscription == null) {
+			subscription = EAIResourceRepository.getInstance().getEventDispatcher().subscribe(RepositoryEvent.class, new EventHandler<RepositoryEvent, Void>() {
+				@Override
+				public Void handle(RepositoryEvent event) {
+					// the cluster artifacts may have been replaced or their hosts changed
+					if (event.isDone()) {
+						resetOwnCluster();
+						BinaryContentCodec.invalidate();
+					}
+					return null;
+				}
+			});
+		}
+		if (nodeSubscription == null) {
+			nodeSubscription = EAIResourceRepository.getInstance().getEventDispatcher().subscribe(NodeEvent.class, new EventHandler<NodeEvent, Void>() {
+				@Override
+				public Void handle(NodeEvent event) {
+					if (event.isDone() && event.getNode() != null && event.getNode().getArtifactClass() != null && ClusterArtifact.class.isAssignableFrom(event.getNode().getArtifactClass())) {
+						resetOwnCluster();
+					}
+					// any node can define (or be) a type that is binary encoded
+					if (event.isDone()) {
+						BinaryContentCodec.invalidate();
+					}
+					return null;
+				}
+			});
+		}
+		if (ownClusterValidator == null) {
+			ownClusterValidator = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("cluster-identity-validator"));
+			ownClusterValidator.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					validateOwnCluster();
+				}
+			}, OWN_CLUSTER_VALIDATION_INTERVAL, OWN_CLUSTER_VALIDATION_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	// checks whether the network interfaces have changed
+	private static void validateOwnCluster() {
+		OwnCluster cached = ownCluster;
+		if (cached != null) {
+			try {
+				List<String> localAddresses = getLocalAddresses();
+				if (!localAddresses.equals(cached.localAddresses)) {
+					logger.info("Local addresses have changed, recalculating own cluster");
+					long generation = ownClusterGeneration.get();
+					OwnCluster recalculated = new OwnCluster(calculateOwnCluster(EAIResourceRepository.getInstance().newExecutionContext(SystemPrincipal.ROOT), localAddresses), localAddresses, generation);
+					synchronized(Services.class) {
+						// only replace it if nothing has reset or replaced it in the meantime
+						if (ownCluster == cached && ownClusterGeneration.get() == generation) {
+							ownCluster = recalculated;
+						}
+					}
+				}
+			}
+			catch (Exception e) {
+				logger.warn("Could not validate own cluster", e);
+				resetOwnCluster();
+			}
+		}
+	}
+	
+	private static ClusterArtifact calculateOwnCluster(ExecutionContext executionContext, List<String> localAddresses) throws SocketException {
 		int port = ((Server) EAIResourceRepository.getInstance().getServiceRunner()).getPort();
-		List<ClusterArtifact> clusters = getClustersFor(getLocalAddresses(), executionContext, port);
+		List<ClusterArtifact> clusters = getClustersFor(localAddresses, executionContext, port);
 		if (clusters.isEmpty()) {
 			return null;
 		}
@@ -232,7 +419,72 @@ public class Services {
 		return null;
 	}
 	
-	public Object invoke(@WebParam(name = "host") String host, @WebParam(name = "serviceId") String id, @WebParam(name = "input") Object input, @WebParam(name = "asynchronous") Boolean asynchronous) throws ServiceException, IOException, InterruptedException, ExecutionException {
+	@WebResult(name = "manifest")
+	public List<ManifestEntry> getManifest(@WebParam(name = "entryId") String entryId) throws IOException {
+		Entry entry = entryId == null ? EAIResourceRepository.getInstance().getRoot() : EAIResourceRepository.getInstance().getEntry(entryId);
+		List<ManifestEntry> manifest = new ArrayList<ManifestEntry>();
+		if (entry != null) {
+			for (Map.Entry<String, String> hash : RepositoryManifest.getInstance().getLoaded(entry).entrySet()) {
+				manifest.add(new ManifestEntry(hash.getKey(), hash.getValue()));
+			}
+		}
+		return manifest;
+	}
+	
+	@WebResult(name = "listing")
+	public List<ListingEntry> getListing(@WebParam(name = "entryId") String entryId) {
+		Entry entry = entryId == null ? EAIResourceRepository.getInstance().getRoot() : EAIResourceRepository.getInstance().getEntry(entryId);
+		List<ListingEntry> listing = new ArrayList<ListingEntry>();
+		if (entry != null) {
+			// the root itself is not listed, its id differs per server
+			list(entry, listing, entryId != null);
+		}
+		return listing;
+	}
+	
+	private void list(Entry entry, List<ListingEntry> listing, boolean include) {
+		if (include) {
+			Date lastModified = null;
+			if (entry.isNode() && entry instanceof ResourceEntry) {
+				Resource resource = ((ResourceEntry) entry).getContainer().getChild("node.xml");
+				if (resource instanceof TimestampedResource) {
+					lastModified = ((TimestampedResource) resource).getLastModified();
+				}
+			}
+			listing.add(new ListingEntry(entry.getId(), lastModified));
+		}
+		if (!entry.isLeaf()) {
+			for (Entry child : entry) {
+				list(child, listing, true);
+			}
+		}
+	}
+	
+	@WebResult(name = "reloaded")
+	public List<String> reloadDelta(@WebParam(name = "ids") List<String> ids) throws IOException {
+		List<String> reloaded = new ArrayList<String>();
+		if (ids != null) {
+			for (String id : ids) {
+				EAIResourceRepository.getInstance().reload(id);
+				Entry entry = EAIResourceRepository.getInstance().getEntry(id);
+				if (entry != null) {
+					RepositoryManifest.getInstance().update(entry);
+				}
+				// it was removed, it should no longer be considered loaded
+				else {
+					RepositoryManifest.getInstance().remove(id);
+				}
+				reloaded.add(id);
+			}
+		}
+		return reloaded;
+	}
+	
+	/**
+	 * If no host is given, the service runs locally unless it is balanced, in which case it may be offloaded to a less busy peer of the own cluster.
+	 * An asynchronous invoke returns a handle that can be used to get the result or cancel the call, the callback service (if any) is run once the call finishes.
+	 */
+	public Object invoke(@WebParam(name = "host") String host, @WebParam(name = "serviceId") String id, @WebParam(name = "input") Object input, @WebParam(name = "asynchronous") Boolean asynchronous, @WebParam(name = "balanced") Boolean balanced, @WebParam(name = "callbackId") String callbackId) throws ServiceException, IOException, InterruptedException, ExecutionException {
 		if (id == null) {
 			return id;
 		}
@@ -240,41 +492,526 @@ public class Services {
 		if (service == null) {
 			throw new IllegalArgumentException("Service not found: " + id);
 		}
+		PeerLoadBalancer balancer = null;
+		if (host == null && balanced != null && balanced) {
+			balancer = getLoadBalancer();
+			ClusterArtifact cluster = getOwnCluster(executionContext);
+			if (balancer != null && cluster != null) {
+				host = balancer.choose(cluster.getConfiguration().getHosts());
+			}
+		}
 		ServiceRunner runner;
 		if (host == null) {
 			runner = EAIResourceRepository.getInstance().getServiceRunner();
 		}
 		else {
-			String clusterId = getClusterFor(host);
-			if (clusterId == null) {
-				throw new IllegalArgumentException("No cluster found that contains the host '" + host + "'");
-			}
-			ClusterArtifact resolve = executionContext.getServiceContext().getResolver(ClusterArtifact.class).resolve(clusterId);
-			if (resolve != null) {
-				ServerConnection connection = resolve.getConnection(host);
-				if (connection == null) {
-					throw new IllegalArgumentException("Can not get connection for host '" + host + "'");
+			runner = getConnection(host).getRemote();
+		}
+		if (runner == null) {
+			throw new IllegalStateException("No service runner found for host '" + host + "'");
+		}
+		final ComplexContent serviceInput = new MaskedContent((ComplexContent) input, service.getServiceInterface().getInputDefinition());
+		// only calls that were actually offloaded are measured
+		final PeerLoadBalancer measure = host == null ? null : balancer;
+
+		if (asynchronous != null && asynchronous) {
+			final ServiceRunner asyncRunner = runner;
+			final DefinedService asyncService = service;
+			final String asyncHost = host;
+			ClusterArtifact cluster = getOwnCluster(executionContext);
+			int maxOutstanding = cluster == null || cluster.getConfig().getAsyncMaxOutstanding() == null ? AsyncInvocationRegistry.DEFAULT_MAX_OUTSTANDING : cluster.getConfig().getAsyncMaxOutstanding();
+			// the call outlives this request and its execution context, it runs in a context of its own for the same user
+			final Token token = getToken();
+			return AsyncInvocationRegistry.getInstance().submit(host, id, maxOutstanding, new Callable<ServiceResult>() {
+				@Override
+				public ServiceResult call() throws Exception {
+					return run(asyncRunner, asyncService, serviceInput, asyncHost, measure, newExecutionContext(token));
+				}
+			}, callbackId == null ? null : newCallback(callbackId, token)).getId();
+		}
+		ServiceResult serviceResult = run(runner, service, serviceInput, host, measure, executionContext);
+		if (serviceResult.getException() != null) {
+			throw serviceResult.getException();
+		}
+		return serviceResult.getOutput();
+	}
+	
+	private ServiceResult run(ServiceRunner runner, DefinedService service, ComplexContent input, String host, PeerLoadBalancer balancer, ExecutionContext executionContext) throws InterruptedException, ExecutionException {
+		if (balancer != null) {
+			balancer.started(host);
+		}
+		long started = System.currentTimeMillis();
+		ServiceResult result = null;
+		boolean failed = true;
+		try {
+			result = host == null ? null : runBinary(runner, service, input, host, executionContext);
+			if (result == null) {
+				Future<ServiceResult> run = runner.run(service, executionContext, input);
+				result = run.get();
+			}
+			failed = false;
+			return result;
+		}
+		finally {
+			if (balancer != null) {
+				if (failed || result == null) {
+					balancer.failed(host);
+				}
+				// an exception of the service itself does not make the peer any slower or less available
+				else if (result.getException() != null) {
+					balancer.finished(host);
+				}
+				else {
+					balancer.succeeded(host, System.currentTimeMillis() - started);
+				}
+			}
+		}
+	}
+	
+	// returns nothing if the call can not be done in the binary format, it should then be done in the regular format
+	private ServiceResult runBinary(ServiceRunner runner, DefinedService service, ComplexContent input, String host, ExecutionContext executionContext) throws InterruptedException, ExecutionException {
+		DefinedService binaryService = DefinedServiceResolverFactory.getInstance().getResolver().resolve(BINARY_SERVICE);
+		if (binaryService == null || !isBinaryEnabled(host, executionContext) || !supportsBinary(runner, host, executionContext)) {
+			return null;
+		}
+		watchTypes();
+		byte[] payload;
+		try {
+			payload = BinaryContentCodec.encode(service.getServiceInterface().getInputDefinition(), input);
+		}
+		catch (UnsupportedOperationException e) {
+			logger.debug("Can not encode the input for " + service.getId() + " in binary, using the regular format", e);
+			return null;
+		}
+		catch (IOException e) {
+			logger.debug("Can not encode the input for " + service.getId() + " in binary, using the regular format", e);
+			return null;
+		}
+		ComplexContent binaryInput = binaryService.getServiceInterface().getInputDefinition().newInstance();
+		binaryInput.set("serviceId", service.getId());
+		binaryInput.set("payload", payload);
+		binaryInput.set("outputFingerprint", BinaryContentCodec.fingerprint(service.getServiceInterface().getOutputDefinition()));
+		final ServiceResult result = runner.run(binaryService, executionContext, binaryInput).get();
+		if (result.getException() != null) {
+			return result;
+		}
+		Object binaryOutput = result.getOutput() == null ? null : result.getOutput().get("result");
+		ComplexContent content = binaryOutput == null || binaryOutput instanceof ComplexContent ? (ComplexContent) binaryOutput : ComplexContentWrapperFactory.getInstance().getWrapper().wrap(binaryOutput);
+		// the host has a different definition of the input, the service was not run
+		if (content != null && Boolean.TRUE.equals(content.get("refused"))) {
+			logger.debug("The host " + host + " has a different definition of " + service.getId() + ", using the regular format");
+			return null;
+		}
+		final ComplexContent output;
+		if (content == null) {
+			output = null;
+		}
+		else if (content.get("payload") != null) {
+			try {
+				output = BinaryContentCodec.decode(service.getServiceInterface().getOutputDefinition(), (byte[]) content.get("payload"));
+			}
+			catch (IOException e) {
+				throw new ExecutionException(e);
+			}
+		}
+		else {
+			Object regular = content.get("output");
+			output = regular == null || regular instanceof ComplexContent ? (ComplexContent) regular : ComplexContentWrapperFactory.getInstance().getWrapper().wrap(regular);
+		}
+		return new ServiceResult() {
+			@Override
+			public ComplexContent getOutput() {
+				return output;
+			}
+			@Override
+			public ServiceException getException() {
+				return null;
+			}
+		};
+	}
+	
+	private boolean isBinaryEnabled(String host, ExecutionContext executionContext) {
+		String clusterId = getClusterFor(host);
+		ClusterArtifact cluster = clusterId == null ? null : executionContext.getServiceContext().getResolver(ClusterArtifact.class).resolve(clusterId);
+		return cluster != null && cluster.getConfig().getBinaryPayloads() != null && cluster.getConfig().getBinaryPayloads();
+	}
+	
+	// asks the host once which wire formats it understands
+	@SuppressWarnings("unchecked")
+	private boolean supportsBinary(ServiceRunner runner, String host, ExecutionContext executionContext) {
+		WireFormat wireFormat = wireFormats.get(host);
+		if (wireFormat == null || wireFormat.negotiated < System.currentTimeMillis() - WIRE_FORMAT_TTL) {
+			boolean binary = false;
+			try {
+				DefinedService service = DefinedServiceResolverFactory.getInstance().getResolver().resolve(WIRE_FORMATS_SERVICE);
+				if (service != null) {
+					ServiceResult result = runner.run(service, executionContext, service.getServiceInterface().getInputDefinition().newInstance()).get();
+					if (result.getException() == null && result.getOutput() != null) {
+						Collection<Object> formats = (Collection<Object>) result.getOutput().get("formats");
+						binary = formats != null && formats.contains(BinaryContentCodec.FORMAT);
+					}
+				}
+			}
+			catch (Exception e) {
+				logger.debug("Could not negotiate the wire format with " + host, e);
+			}
+			wireFormat = new WireFormat(binary);
+			wireFormats.put(host, wireFormat);
+		}
+		return wireFormat.binary;
+	}
+	
+	@WebResult(name = "formats")
+	public List<String> getWireFormats() {
+		return Arrays.asList(BinaryContentCodec.FORMAT);
+	}
+	
+	/**
+	 * Runs a service with a binary encoded input, the output is binary encoded as well unless it can not be, in which case it is returned in the regular format
+	 * If the input was encoded for a different definition of the service, the call is refused without running it so the caller can retry in the regular format
+	 */
+	@WebResult(name = "result")
+	public BinaryResult executeBinary(@WebParam(name = "serviceId") @NotNull String serviceId, @WebParam(name = "payload") @NotNull byte[] payload, @WebParam(name = "outputFingerprint") Long outputFingerprint) throws ServiceException, IOException, InterruptedException, ExecutionException {
+		DefinedService service = DefinedServiceResolverFactory.getInstance().getResolver().resolve(serviceId);
+		if (service == null) {
+			throw new IllegalArgumentException("Service not found: " + serviceId);
+		}
+		watchTypes();
+		BinaryResult result = new BinaryResult();
+		if (!BinaryContentCodec.isCompatible(service.getServiceInterface().getInputDefinition(), payload)) {
+			result.setRefused(true);
+			return result;
+		}
+		ComplexContent input = BinaryContentCodec.decode(service.getServiceInterface().getInputDefinition(), payload);
+		if (input == null) {
+			input = service.getServiceInterface().getInputDefinition().newInstance();
+		}
+		ServiceResult serviceResult = EAIResourceRepository.getInstance().getServiceRunner().run(service, executionContext, input).get();
+		if (serviceResult.getException() != null) {
+			throw serviceResult.getException();
+		}
+		// only encode the output if the caller has the same definition of it
+		if (outputFingerprint == null || outputFingerprint.longValue() != BinaryContentCodec.fingerprint(service.getServiceInterface().getOutputDefinition())) {
+			result.setOutput(serviceResult.getOutput());
+			return result;
+		}
+		try {
+			result.setPayload(BinaryContentCodec.encode(service.getServiceInterface().getOutputDefinition(), serviceResult.getOutput()));
+		}
+		catch (UnsupportedOperationException e) {
+			logger.debug("Can not encode the output of " + serviceId + " in binary, using the regular format", e);
+			result.setOutput(serviceResult.getOutput());
+		}
+		return result;
+	}
+	
+	// the callback service receives the handle and either the output or the error of the call
+	private AsyncCallback newCallback(final String callbackId, final Token token) {
+		return new AsyncCallback() {
+			@Override
+			public void completed(AsyncInvocation invocation) throws Exception {
+				DefinedService callback = DefinedServiceResolverFactory.getInstance().getResolver().resolve(callbackId);
+				if (callback == null) {
+					throw new IllegalArgumentException("Callback service not found: " + callbackId);
+				}
+				ComplexContent input = callback.getServiceInterface().getInputDefinition().newInstance();
+				setIfPresent(input, "handle", invocation.getId());
+				setIfPresent(input, "output", invocation.getOutput());
+				setIfPresent(input, "error", invocation.getException() == null ? null : invocation.getException().toString());
+				ServiceResult result = EAIResourceRepository.getInstance().getServiceRunner().run(callback, newExecutionContext(token), input).get();
+				if (result.getException() != null) {
+					throw result.getException();
+				}
+			}
+		};
+	}
+	
+	private static void setIfPresent(ComplexContent content, String field, Object value) {
+		if (value != null && content.getType().get(field) != null) {
+			content.set(field, value);
+		}
+	}
+	
+	/**
+	 * Returns the state of an asynchronous call, optionally waiting at most the timeout (in ms) for it to finish. Returns nothing if the handle is unknown or expired.
+	 */
+	@WebResult(name = "result")
+	public AsyncResult getAsyncResult(@WebParam(name = "handle") @NotNull String handle, @WebParam(name = "timeout") Long timeout) throws InterruptedException {
+		AsyncInvocation invocation = AsyncInvocationRegistry.getInstance().get(handle);
+		if (invocation == null) {
+			return null;
+		}
+		if (timeout != null && timeout > 0) {
+			invocation.await(timeout);
+		}
+		AsyncResult result = new AsyncResult();
+		result.setHandle(invocation.getId());
+		result.setHost(invocation.getHost());
+		result.setServiceId(invocation.getServiceId());
+		result.setDone(invocation.isDone());
+		if (invocation.isDone()) {
+			result.setOutput(invocation.getOutput());
+			result.setError(invocation.getException() == null ? null : invocation.getException().toString());
+			result.setDuration(invocation.getCompleted() - invocation.getStarted());
+		}
+		return result;
+	}
+	
+	@WebResult(name = "cancelled")
+	public Boolean cancelAsync(@WebParam(name = "handle") @NotNull String handle) {
+		return AsyncInvocationRegistry.getInstance().cancel(handle);
+	}
+	
+	private static PeerLoadBalancer getLoadBalancer() {
+		ClusterServerListener listener = ClusterServerListener.getInstance();
+		return listener == null || listener.getHeartbeat() == null ? null : listener.getHeartbeat().getLoadBalancer();
+	}
+	
+	private ServerConnection getConnection(String host) throws IOException {
+		String clusterId = getClusterFor(host);
+		if (clusterId == null) {
+			throw new IllegalArgumentException("No cluster found that contains the host '" + host + "'");
+		}
+		ClusterArtifact resolve = executionContext.getServiceContext().getResolver(ClusterArtifact.class).resolve(clusterId);
+		if (resolve == null) {
+			throw new IllegalArgumentException("Can not resolve cluster '" + clusterId + "'");
+		}
+		ServerConnection connection = resolve.getConnection(host);
+		if (connection == null) {
+			throw new IllegalArgumentException("Can not get connection for host '" + host + "'");
+		}
+		return connection;
+	}
+	
+	/**
+	 * Runs all the calls on the given host (or locally if no host is given) in a single round trip
+	 */
+	@SuppressWarnings("unchecked")
+	@WebResult(name = "results")
+	public List<BatchResult> invokeBatch(@WebParam(name = "host") String host, @WebParam(name = "calls") List<BatchCall> calls, @WebParam(name = "parallel") Boolean parallel) throws ServiceException, IOException, InterruptedException, ExecutionException {
+		if (host == null) {
+			return executeBatch(calls, parallel);
+		}
+		List<BatchResult> results = new ArrayList<BatchResult>();
+		if (calls == null || calls.isEmpty()) {
+			return results;
+		}
+		DefinedService service = DefinedServiceResolverFactory.getInstance().getResolver().resolve(BATCH_SERVICE);
+		if (service == null) {
+			throw new IllegalStateException("Service not found: " + BATCH_SERVICE);
+		}
+		List<ComplexContent> wrapped = new ArrayList<ComplexContent>();
+		for (BatchCall call : calls) {
+			wrapped.add(ComplexContentWrapperFactory.getInstance().getWrapper().wrap(call));
+		}
+		ComplexContent input = service.getServiceInterface().getInputDefinition().newInstance();
+		input.set("calls", wrapped);
+		input.set("parallel", parallel);
+		ServiceResult serviceResult = getConnection(host).getRemote().run(service, executionContext, input).get();
+		if (serviceResult.getException() != null) {
+			throw serviceResult.getException();
+		}
+		Collection<Object> output = serviceResult.getOutput() == null ? null : (Collection<Object>) serviceResult.getOutput().get("results");
+		if (output != null) {
+			for (Object single : output) {
+				ComplexContent content = single instanceof ComplexContent ? (ComplexContent) single : ComplexContentWrapperFactory.getInstance().getWrapper().wrap(single);
+				results.add(new BatchResult(get(content, "serviceId", String.class), content.get("output"), get(content, "error", String.class), get(content, "errorCode", String.class), get(content, "duration", Long.class)));
+			}
+		}
+		return results;
+	}
+	
+	// the remote result is not necessarily typed the way we expect it (e.g. a duration can be parsed as an integer), so we convert rather than cast
+	private static <T> T get(ComplexContent content, String name, Class<T> type) {
+		Object value = content.get(name);
+		if (value == null || type.isInstance(value)) {
+			return type.cast(value);
+		}
+		T converted = ConverterFactory.getInstance().getConverter().convert(value, type);
+		if (converted == null) {
+			throw new IllegalArgumentException("Can not convert the field '" + name + "' of type " + value.getClass().getName() + " to " + type.getName());
+		}
+		return converted;
+	}
+	
+	/**
+	 * Runs the calls on this server, the results are in the same order as the calls
+	 */
+	@WebResult(name = "results")
+	public List<BatchResult> executeBatch(@WebParam(name = "calls") List<BatchCall> calls, @WebParam(name = "parallel") Boolean parallel) throws InterruptedException {
+		List<BatchResult> results = new ArrayList<BatchResult>();
+		if (calls != null) {
+			if (parallel != null && parallel && calls.size() > 1) {
+				List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>();
+				for (final BatchCall call : calls) {
+					// an execution context is not thread safe, every parallel call gets its own one for the same user
+					final ExecutionContext callContext = newExecutionContext();
+					futures.add(batchExecutor.submit(new Callable<BatchResult>() {
+						@Override
+						public BatchResult call() {
+							return execute(call, callContext);
+						}
+					}));
+				}
+				for (int i = 0; i < futures.size(); i++) {
+					try {
+						results.add(futures.get(i).get());
+					}
+					catch (ExecutionException e) {
+						results.add(newBatchResult(calls.get(i).getServiceId(), e.getCause(), null));
+					}
 				}
-				runner = connection.getRemote();
 			}
 			else {
-				throw new IllegalArgumentException("Can not resolve cluster '" + clusterId + "'");
+				for (BatchCall call : calls) {
+					results.add(execute(call, executionContext));
+				}
 			}
 		}
-		if (runner == null) {
-			throw new IllegalStateException("No service runner found for host '" + host + "'");
+		return results;
+	}
+	
+	/**
+	 * Runs the service on all the hosts of the own cluster (or the given subset of them) at the same time and waits at most the timeout for their results, the own host runs it in-process.
+	 * Hosts that fail or do not respond in time are part of the result but do not fail the broadcast. If a reducer is given, it receives the results (as "results") and its output is returned as well.
+	 * Without a timeout, the socket timeout of the cluster is used as deadline.
+	 */
+	@WebResult(name = "broadcast")
+	public BroadcastResult broadcast(@WebParam(name = "serviceId") @NotNull String serviceId, @WebParam(name = "input") Object input, @WebParam(name = "hosts") List<String> hosts, @WebParam(name = "timeout") Long timeout, @WebParam(name = "reducerId") String reducerId) throws ServiceException, IOException, InterruptedException, ExecutionException {
+		ClusterArtifact cluster = getOwnCluster(executionContext);
+		if (cluster == null) {
+			throw new IllegalStateException("This server is not part of a cluster");
 		}
-		ComplexContent serviceInput = new MaskedContent((ComplexContent) input, service.getServiceInterface().getInputDefinition());
-
-		Future<ServiceResult> run = runner.run(service, executionContext, serviceInput);
-		
-		if (asynchronous == null || !asynchronous) {
-			ServiceResult serviceResult = run.get();
+		final DefinedService service = DefinedServiceResolverFactory.getInstance().getResolver().resolve(serviceId);
+		if (service == null) {
+			throw new IllegalArgumentException("Service not found: " + serviceId);
+		}
+		DefinedService reducer = null;
+		if (reducerId != null) {
+			reducer = DefinedServiceResolverFactory.getInstance().getResolver().resolve(reducerId);
+			if (reducer == null) {
+				throw new IllegalArgumentException("Reducer not found: " + reducerId);
+			}
+		}
+		List<String> targets = cluster.getConfiguration().getHosts() == null ? new ArrayList<String>() : new ArrayList<String>(cluster.getConfiguration().getHosts());
+		// no hosts means all of them
+		if (hosts != null && !hosts.isEmpty()) {
+			for (String host : hosts) {
+				if (!targets.contains(host)) {
+					throw new IllegalArgumentException("The host '" + host + "' is not part of the cluster: " + cluster.getId());
+				}
+			}
+			targets.retainAll(hosts);
+		}
+		if (timeout == null) {
+			timeout = cluster.getConfig().getSocketTimeout() == null ? BROADCAST_TIMEOUT : cluster.getConfig().getSocketTimeout().longValue();
+		}
+		final ComplexContent serviceInput = input == null ? service.getServiceInterface().getInputDefinition().newInstance() : new MaskedContent((ComplexContent) input, service.getServiceInterface().getInputDefinition());
+		final Token token = getToken();
+		final String ownHost = getOwnHostName(cluster);
+		List<ClusterHostResult> hostResults = cluster.execute(targets, new HostAction() {
+			@Override
+			public Object execute(String host, ServerConnection connection) throws Exception {
+				// the hosts are called in parallel and an execution context is not thread safe
+				ExecutionContext context = newExecutionContext(token);
+				// there is no need to go over the network for ourselves
+				ServiceRunner runner = host.equals(ownHost) ? EAIResourceRepository.getInstance().getServiceRunner() : connection.getRemote();
+				ServiceResult serviceResult = runner.run(service, context, serviceInput).get();
+				if (serviceResult.getException() != null) {
+					throw serviceResult.getException();
+				}
+				return serviceResult.getOutput();
+			}
+		}, timeout, true);
+		BroadcastResult result = new BroadcastResult();
+		boolean complete = true;
+		for (ClusterHostResult hostResult : hostResults) {
+			complete &= hostResult.isSuccess();
+			result.getResults().add(new HostResult(hostResult.getHost(), hostResult.isSuccess(), hostResult.getOutput(), hostResult.getException() == null ? null : hostResult.getException().toString(), hostResult.getDuration()));
+		}
+		result.setComplete(complete);
+		if (reducer != null) {
+			List<ComplexContent> wrapped = new ArrayList<ComplexContent>();
+			for (HostResult hostResult : result.getResults()) {
+				wrapped.add(ComplexContentWrapperFactory.getInstance().getWrapper().wrap(hostResult));
+			}
+			ComplexContent reducerInput = reducer.getServiceInterface().getInputDefinition().newInstance();
+			reducerInput.set("results", wrapped);
+			ServiceResult reduced = EAIResourceRepository.getInstance().getServiceRunner().run(reducer, executionContext, reducerInput).get();
+			if (reduced.getException() != null) {
+				throw reduced.getException();
+			}
+			result.setReduced(reduced.getOutput());
+		}
+		return result;
+	}
+	
+	private ExecutionContext newExecutionContext() {
+		return newExecutionContext(getToken());
+	}
+	
+	// the token of the caller, it outlives the execution context of this call
+	private Token getToken() {
+		return executionContext == null || executionContext.getSecurityContext() == null ? null : executionContext.getSecurityContext().getToken();
+	}
+	
+	private static ExecutionContext newExecutionContext(Token token) {
+		return EAIResourceRepository.getInstance().newExecutionContext(token);
+	}
+	
+	// a failing call ends up in its own result so it does not stop the rest of the batch
+	private BatchResult execute(BatchCall call, ExecutionContext executionContext) {
+		long started = System.currentTimeMillis();
+		try {
+			DefinedService service = call.getServiceId() == null ? null : DefinedServiceResolverFactory.getInstance().getResolver().resolve(call.getServiceId());
+			if (service == null) {
+				throw new IllegalArgumentException("Service not found: " + call.getServiceId());
+			}
+			ComplexContent input;
+			if (call.getInput() == null) {
+				input = service.getServiceInterface().getInputDefinition().newInstance();
+			}
+			else {
+				ComplexContent content = call.getInput() instanceof ComplexContent ? (ComplexContent) call.getInput() : ComplexContentWrapperFactory.getInstance().getWrapper().wrap(call.getInput());
+				input = new MaskedContent(content, service.getServiceInterface().getInputDefinition());
+			}
+			ServiceResult serviceResult = EAIResourceRepository.getInstance().getServiceRunner().run(service, executionContext, input).get();
 			if (serviceResult.getException() != null) {
 				throw serviceResult.getException();
 			}
-			return serviceResult.getOutput();
+			return new BatchResult(call.getServiceId(), serviceResult.getOutput(), null, null, System.currentTimeMillis() - started);
+		}
+		catch (Exception e) {
+			logger.warn("Batched call to " + call.getServiceId() + " failed", e);
+			return newBatchResult(call.getServiceId(), e, System.currentTimeMillis() - started);
+		}
+	}
+	
+	// the code of a service exception is kept so the caller can act on it
+	private static BatchResult newBatchResult(String serviceId, Throwable exception, Long duration) {
+		String code = exception instanceof ServiceException ? ((ServiceException) exception).getCode() : null;
+		String message = exception == null ? null : (exception.getMessage() == null ? exception.getClass().getName() : exception.getMessage());
+		return new BatchResult(serviceId, null, message, code, duration);
+	}
+	
+	private static class WireFormat {
+		private boolean binary;
+		private long negotiated = System.currentTimeMillis();
+		
+		private WireFormat(boolean binary) {
+			this.binary = binary;
+		}
+	}
+	
+	private static class OwnCluster {
+		private ClusterArtifact cluster;
+		private List<String> localAddresses;
+		private long generation;
+		
+		private OwnCluster(ClusterArtifact cluster, List<String> localAddresses, long generation) {
+			this.cluster = cluster;
+			this.localAddresses = localAddresses;
+			this.generation = generation;
 		}
-		return null;
 	}
 }
@@ -0,0 +1,50 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package nabu.misc.cluster.types;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+@XmlRootElement(name = "batchCall")
+@XmlType(propOrder = { "serviceId", "input" })
+public class BatchCall {
+	private String serviceId;
+	private Object input;
+	
+	public BatchCall() {
+		// auto construct
+	}
+	
+	public BatchCall(String serviceId, Object input) {
+		this.serviceId = serviceId;
+		this.input = input;
+	}
+	
+	public String getServiceId() {
+		return serviceId;
+	}
+	public void setServiceId(String serviceId) {
+		this.serviceId = serviceId;
+	}
+	public Object getInput() {
+		return input;
+	}
+	public void setInput(Object input) {
+		this.input = input;
+	}
+}
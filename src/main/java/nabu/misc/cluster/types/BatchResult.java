@@ -0,0 +1,81 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package nabu.misc.cluster.types;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+@XmlRootElement(name = "batchResult")
+@XmlType(propOrder = { "serviceId", "output", "error", "errorCode", "duration" })
+public class BatchResult {
+	private String serviceId, error, errorCode;
+	private Object output;
+	private Long duration;
+	
+	public BatchResult() {
+		// auto construct
+	}
+	
+	public BatchResult(String serviceId, Object output, String error, String errorCode, Long duration) {
+		this.serviceId = serviceId;
+		this.output = output;
+		this.error = error;
+		this.errorCode = errorCode;
+		this.duration = duration;
+	}
+	
+	public String getServiceId() {
+		return serviceId;
+	}
+	public void setServiceId(String serviceId) {
+		this.serviceId = serviceId;
+	}
+	public Object getOutput() {
+		return output;
+	}
+	public void setOutput(Object output) {
+		this.output = output;
+	}
+	/**
+	 * The message of the exception of the call (if any), a failing call does not stop the rest of the batch
+	 */
+	public String getError() {
+		return error;
+	}
+	public void setError(String error) {
+		this.error = error;
+	}
+	/**
+	 * The code of the service exception (if any)
+	 */
+	public String getErrorCode() {
+		return errorCode;
+	}
+	public void setErrorCode(String errorCode) {
+		this.errorCode = errorCode;
+	}
+	/**
+	 * How long the call took on the remote server (in ms)
+	 */
+	public Long getDuration() {
+		return duration;
+	}
+	public void setDuration(Long duration) {
+		this.duration = duration;
+	}
+}
@@ -0,0 +1,57 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package nabu.misc.cluster.types;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+@XmlRootElement(name = "binaryResult")
+@XmlType(propOrder = { "payload", "output", "refused" })
+public class BinaryResult {
+	private byte[] payload;
+	private Object output;
+	private Boolean refused;
+	
+	/**
+	 * The binary encoded output of the service
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+	public void setPayload(byte[] payload) {
+		this.payload = payload;
+	}
+	/**
+	 * The output in the regular format, only set if it could not be encoded
+	 */
+	public Object getOutput() {
+		return output;
+	}
+	public void setOutput(Object output) {
+		this.output = output;
+	}
+	/**
+	 * Set if the payload was encoded for a different definition of the service, it was not run
+	 */
+	public Boolean getRefused() {
+		return refused;
+	}
+	public void setRefused(Boolean refused) {
+		this.refused = refused;
+	}
+}
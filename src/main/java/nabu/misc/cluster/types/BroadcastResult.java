@@ -0,0 +1,57 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package nabu.misc.cluster.types;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+@XmlRootElement(name = "broadcastResult")
+@XmlType(propOrder = { "complete", "results", "reduced" })
+public class BroadcastResult {
+	private Boolean complete;
+	private List<HostResult> results = new ArrayList<HostResult>();
+	private Object reduced;
+	
+	/**
+	 * Whether every host responded successfully before the deadline, if not the results are partial
+	 */
+	public Boolean getComplete() {
+		return complete;
+	}
+	public void setComplete(Boolean complete) {
+		this.complete = complete;
+	}
+	public List<HostResult> getResults() {
+		return results;
+	}
+	public void setResults(List<HostResult> results) {
+		this.results = results;
+	}
+	/**
+	 * The output of the reducer service (if any)
+	 */
+	public Object getReduced() {
+		return reduced;
+	}
+	public void setReduced(Object reduced) {
+		this.reduced = reduced;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import be.nabu.libs.artifacts.api.Artifact;
+
+public class ArtifactCacheTest extends TestCase {
+	
+	private int parsed;
+	
+	public void testRecentArtifactsAreKept() {
+		ArtifactCache cache = new ArtifactCache(2);
+		Artifact first = resolve(cache, "test.a");
+		resolve(cache, "test.b");
+		assertSame(first, resolve(cache, "test.a"));
+		assertEquals(2, parsed);
+	}
+	
+	public void testEvictedArtifactIsReclaimedAndResolvedAgain() {
+		ArtifactCache cache = new ArtifactCache(1);
+		WeakReference<Artifact> evicted = new WeakReference<Artifact>(resolve(cache, "test.a"));
+		// only softly referenced from now on
+		resolve(cache, "test.b");
+		exhaustMemory();
+		assertNull("The evicted artifact was not reclaimed", evicted.get());
+		assertNull(cache.get("test.a"));
+		// the cache no longer has it so it is parsed again
+		Artifact resolved = resolve(cache, "test.a");
+		assertEquals("test.a", resolved.getId());
+		assertEquals(3, parsed);
+		assertSame(resolved, resolve(cache, "test.a"));
+	}
+	
+	public void testEvictedArtifactIsPromotedIfNotReclaimed() {
+		ArtifactCache cache = new ArtifactCache(1);
+		Artifact first = resolve(cache, "test.a");
+		resolve(cache, "test.b");
+		// we still hold on to it, so the soft reference can not be cleared
+		assertSame(first, cache.get("test.a"));
+		assertEquals(2, parsed);
+	}
+	
+	public void testInvalidationRemovesTheSubtree() {
+		ArtifactCache cache = new ArtifactCache(10);
+		resolve(cache, "test.a");
+		resolve(cache, "test.a.child");
+		resolve(cache, "test.b");
+		cache.invalidate(Arrays.asList("test.a"));
+		assertNull(cache.get("test.a"));
+		assertNull(cache.get("test.a.child"));
+		assertNotNull(cache.get("test.b"));
+	}
+	
+	public void testStaleGenerationIsNotCached() {
+		ArtifactCache cache = new ArtifactCache(10);
+		long generation = cache.getGeneration();
+		cache.invalidate(Arrays.asList("test.a"));
+		cache.put("test.a", newArtifact("test.a"), generation);
+		assertNull(cache.get("test.a"));
+	}
+	
+	public void testConcurrentResolveKeepsTheFirstInstance() {
+		ArtifactCache cache = new ArtifactCache(10);
+		long generation = cache.getGeneration();
+		Artifact first = cache.put("test.a", newArtifact("test.a"), generation);
+		assertSame(first, cache.put("test.a", newArtifact("test.a"), generation));
+	}
+	
+	// what the repository does: use the cached artifact or parse it again and cache it
+	private Artifact resolve(ArtifactCache cache, String id) {
+		long generation = cache.getGeneration();
+		Artifact artifact = cache.get(id);
+		if (artifact == null) {
+			parsed++;
+			artifact = cache.put(id, newArtifact(id), generation);
+		}
+		return artifact;
+	}
+	
+	private static Artifact newArtifact(final String id) {
+		return new Artifact() {
+			@Override
+			public String getId() {
+				return id;
+			}
+		};
+	}
+	
+	// the garbage collector clears all soft references before it runs out of memory
+	private static void exhaustMemory() {
+		List<byte[]> filler = new ArrayList<byte[]>();
+		try {
+			while (true) {
+				filler.add(new byte[1024 * 1024]);
+			}
+		}
+		catch (OutOfMemoryError e) {
+			filler.clear();
+		}
+		System.gc();
+	}
+}
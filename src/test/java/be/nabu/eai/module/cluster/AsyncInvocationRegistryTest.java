@@ -0,0 +1,179 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+import be.nabu.eai.module.cluster.AsyncInvocationRegistry.AsyncCallback;
+import be.nabu.eai.module.cluster.AsyncInvocationRegistry.AsyncInvocation;
+import be.nabu.libs.services.api.ServiceException;
+import be.nabu.libs.services.api.ServiceResult;
+import be.nabu.libs.types.api.ComplexContent;
+
+public class AsyncInvocationRegistryTest extends TestCase {
+	
+	private AsyncInvocationRegistry registry = new AsyncInvocationRegistry();
+	private CountDownLatch release = new CountDownLatch(1);
+	
+	@Override
+	protected void tearDown() {
+		release.countDown();
+	}
+	
+	public void testResultAndCallback() throws InterruptedException {
+		final AtomicReference<AsyncInvocation> called = new AtomicReference<AsyncInvocation>();
+		final CountDownLatch callbackDone = new CountDownLatch(1);
+		AsyncInvocation invocation = registry.submit("host", "test.service", 1, blocking(), new AsyncCallback() {
+			@Override
+			public void completed(AsyncInvocation invocation) {
+				called.set(invocation);
+				callbackDone.countDown();
+			}
+		});
+		assertSame(invocation, registry.get(invocation.getId()));
+		assertFalse(invocation.await(50));
+		release.countDown();
+		assertTrue(invocation.await(5000));
+		assertNull(invocation.getException());
+		assertTrue(callbackDone.await(5, TimeUnit.SECONDS));
+		assertSame(invocation, called.get());
+	}
+	
+	public void testOutstandingIsBounded() throws InterruptedException {
+		AsyncInvocation first = registry.submit("host", "test.service", 1, blocking(), null);
+		try {
+			registry.submit("host", "test.service", 1, blocking(), null);
+			fail("The limit was not enforced");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		// the limit is per host
+		registry.submit("other", "test.service", 1, blocking(), null);
+		release.countDown();
+		assertTrue(first.await(5000));
+		awaitOutstanding("host", 0);
+		registry.submit("host", "test.service", 1, blocking(), null);
+	}
+	
+	public void testChangedLimitApplies() throws InterruptedException {
+		registry.submit("host", "test.service", 1, blocking(), null);
+		// raising the limit allows more calls immediately
+		registry.submit("host", "test.service", 3, blocking(), null);
+		registry.submit("host", "test.service", 3, blocking(), null);
+		assertEquals(3, registry.getOutstanding("host"));
+		// lowering it counts the calls that are already running
+		try {
+			registry.submit("host", "test.service", 2, blocking(), null);
+			fail("The lowered limit was not enforced");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(3, registry.getOutstanding("host"));
+		release.countDown();
+		awaitOutstanding("host", 0);
+	}
+	
+	public void testCancelledCallKeepsItsPermitUntilItStops() throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		final CountDownLatch stop = new CountDownLatch(1);
+		AsyncInvocation invocation = registry.submit(null, "test.service", 1, new Callable<ServiceResult>() {
+			@Override
+			public ServiceResult call() {
+				started.countDown();
+				try {
+					new CountDownLatch(1).await();
+				}
+				catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+				// winding down
+				try {
+					stop.await();
+				}
+				catch (InterruptedException e) {
+					// ignore
+				}
+				return result();
+			}
+		}, null);
+		// wait until it runs so the cancel interrupts it
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertTrue(registry.cancel(invocation.getId()));
+		assertFalse(registry.cancel(invocation.getId()));
+		assertTrue(invocation.isDone());
+		assertTrue(invocation.getException() instanceof CancellationException);
+		assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+		assertEquals(1, registry.getOutstanding(null));
+		stop.countDown();
+		awaitOutstanding(null, 0);
+		// the late result does not overwrite the cancellation
+		assertTrue(invocation.getException() instanceof CancellationException);
+	}
+	
+	public void testFailureIsKept() throws InterruptedException {
+		AsyncInvocation invocation = registry.submit("host", "test.service", 1, new Callable<ServiceResult>() {
+			@Override
+			public ServiceResult call() {
+				throw new IllegalArgumentException("failed");
+			}
+		}, null);
+		assertTrue(invocation.await(5000));
+		assertTrue(invocation.getException() instanceof IllegalArgumentException);
+		awaitOutstanding("host", 0);
+	}
+	
+	private void awaitOutstanding(String host, int amount) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (registry.getOutstanding(host) != amount && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(amount, registry.getOutstanding(host));
+	}
+	
+	// a call that runs until the test releases it
+	private Callable<ServiceResult> blocking() {
+		return new Callable<ServiceResult>() {
+			@Override
+			public ServiceResult call() throws Exception {
+				release.await();
+				return result();
+			}
+		};
+	}
+	
+	private static ServiceResult result() {
+		return new ServiceResult() {
+			@Override
+			public ComplexContent getOutput() {
+				return null;
+			}
+			@Override
+			public ServiceException getException() {
+				return null;
+			}
+		};
+	}
+}
@@ -0,0 +1,251 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import junit.framework.TestCase;
+import be.nabu.libs.types.ComplexContentWrapperFactory;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.binding.xml.XMLBinding;
+import be.nabu.libs.types.mask.MaskedContent;
+
+public class BinaryContentCodecTest extends TestCase {
+	
+	private static final int LINES = 50;
+	
+	public void testRoundTrip() throws IOException {
+		ComplexContent content = wrap(newOrder(LINES));
+		ComplexType type = content.getType();
+		ComplexContent decoded = BinaryContentCodec.decode(type, BinaryContentCodec.encode(type, content));
+		assertEquals(content.get("id"), decoded.get("id"));
+		assertEquals(content.get("created"), decoded.get("created"));
+		assertEquals(content.get("customer"), decoded.get("customer"));
+		assertEquals(content.get("total"), decoded.get("total"));
+		assertEquals(content.get("paid"), decoded.get("paid"));
+		List<?> lines = (List<?>) decoded.get("lines");
+		assertEquals(LINES, lines.size());
+		for (int i = 0; i < LINES; i++) {
+			ComplexContent expected = wrap(((List<?>) content.get("lines")).get(i));
+			ComplexContent actual = wrap(lines.get(i));
+			assertEquals(expected.get("reference"), actual.get("reference"));
+			assertEquals(expected.get("product"), actual.get("product"));
+			assertEquals(expected.get("quantity"), actual.get("quantity"));
+			assertEquals(expected.get("price"), actual.get("price"));
+		}
+	}
+	
+	public void testMissingValues() throws IOException {
+		ComplexContent content = wrap(new Order());
+		ComplexType type = content.getType();
+		ComplexContent decoded = BinaryContentCodec.decode(type, BinaryContentCodec.encode(type, content));
+		assertNotNull(decoded);
+		assertNull(decoded.get("id"));
+		assertNull(decoded.get("lines"));
+		assertNull(BinaryContentCodec.decode(type, BinaryContentCodec.encode(type, null)));
+	}
+	
+	// invoke masks the input with the definition of the service before it is encoded
+	public void testMaskedContent() throws IOException {
+		ComplexContent content = wrap(newOrder(LINES));
+		ComplexType type = content.getType();
+		byte[] masked = BinaryContentCodec.encode(type, new MaskedContent(content, type));
+		assertTrue(Arrays.equals(BinaryContentCodec.encode(type, content), masked));
+		assertEquals(content.get("id"), BinaryContentCodec.decode(type, masked).get("id"));
+	}
+	
+	// the payload travels base64 encoded in a regular call, it should still be smaller than the content in the regular format
+	public void testMaskedContentIsSmallerThanXml() throws IOException {
+		ComplexContent content = wrap(newOrder(LINES));
+		ComplexType type = content.getType();
+		ComplexContent masked = new MaskedContent(content, type);
+		byte[] base64 = Base64.getEncoder().encode(BinaryContentCodec.encode(type, masked));
+		ByteArrayOutputStream xml = new ByteArrayOutputStream();
+		new XMLBinding(type, Charset.forName("UTF-8")).marshal(xml, masked);
+		assertTrue("Binary " + base64.length + " bytes, xml " + xml.size() + " bytes", base64.length < xml.size());
+	}
+	
+	public void testFingerprint() {
+		ComplexType order = wrap(new Order()).getType();
+		ComplexType line = wrap(new OrderLine()).getType();
+		assertEquals(BinaryContentCodec.fingerprint(order), BinaryContentCodec.fingerprint(order));
+		assertFalse(BinaryContentCodec.fingerprint(order) == BinaryContentCodec.fingerprint(line));
+		// the same structure is fingerprinted the same way after an invalidation
+		long fingerprint = BinaryContentCodec.fingerprint(order);
+		BinaryContentCodec.invalidate();
+		assertEquals(fingerprint, BinaryContentCodec.fingerprint(order));
+	}
+	
+	public void testDifferentDefinitionIsRefused() throws IOException {
+		ComplexContent content = wrap(newOrder(1));
+		byte[] bytes = BinaryContentCodec.encode(content.getType(), content);
+		ComplexType other = wrap(new OrderLine()).getType();
+		assertTrue(BinaryContentCodec.isCompatible(content.getType(), bytes));
+		assertFalse(BinaryContentCodec.isCompatible(other, bytes));
+		assertFalse(BinaryContentCodec.isCompatible(content.getType(), new byte[] { 2 }));
+		try {
+			BinaryContentCodec.decode(other, bytes);
+			fail("Decoded with a different definition");
+		}
+		catch (IOException e) {
+			// expected
+		}
+	}
+	
+	public void testNumbersMustHaveTheExactClass() throws IOException {
+		OrderLine line = new OrderLine();
+		line.setQuantity(5);
+		final ComplexContent content = wrap(line);
+		ComplexContent widened = new ComplexContent() {
+			@Override
+			public ComplexType getType() {
+				return content.getType();
+			}
+			@Override
+			public void set(String path, Object value) {
+				content.set(path, value);
+			}
+			@Override
+			public Object get(String path) {
+				// a long where the definition has an integer
+				return "quantity".equals(path) ? 5l : content.get(path);
+			}
+		};
+		try {
+			BinaryContentCodec.encode(content.getType(), widened);
+			fail("A long was encoded as an integer");
+		}
+		catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+	
+	private static ComplexContent wrap(Object object) {
+		return object instanceof ComplexContent ? (ComplexContent) object : ComplexContentWrapperFactory.getInstance().getWrapper().wrap(object);
+	}
+	
+	private static Order newOrder(int lines) {
+		Order order = new Order();
+		order.setId(UUID.randomUUID().toString());
+		order.setCreated(new Date());
+		order.setCustomer(123456789l);
+		order.setPaid(true);
+		BigDecimal total = BigDecimal.ZERO;
+		List<OrderLine> orderLines = new ArrayList<OrderLine>();
+		for (int i = 0; i < lines; i++) {
+			OrderLine line = new OrderLine();
+			line.setReference(UUID.randomUUID());
+			line.setProduct("Product number " + i);
+			line.setQuantity(i % 5 + 1);
+			line.setPrice(9.95 * (i + 1));
+			total = total.add(BigDecimal.valueOf(line.getPrice() * line.getQuantity()));
+			orderLines.add(line);
+		}
+		order.setLines(orderLines);
+		order.setTotal(total);
+		return order;
+	}
+	
+	public static class Order {
+		private String id;
+		private Date created;
+		private Long customer;
+		private BigDecimal total;
+		private Boolean paid;
+		private List<OrderLine> lines;
+		
+		public String getId() {
+			return id;
+		}
+		public void setId(String id) {
+			this.id = id;
+		}
+		public Date getCreated() {
+			return created;
+		}
+		public void setCreated(Date created) {
+			this.created = created;
+		}
+		public Long getCustomer() {
+			return customer;
+		}
+		public void setCustomer(Long customer) {
+			this.customer = customer;
+		}
+		public BigDecimal getTotal() {
+			return total;
+		}
+		public void setTotal(BigDecimal total) {
+			this.total = total;
+		}
+		public Boolean getPaid() {
+			return paid;
+		}
+		public void setPaid(Boolean paid) {
+			this.paid = paid;
+		}
+		public List<OrderLine> getLines() {
+			return lines;
+		}
+		public void setLines(List<OrderLine> lines) {
+			this.lines = lines;
+		}
+	}
+	
+	public static class OrderLine {
+		private UUID reference;
+		private String product;
+		private Integer quantity;
+		private Double price;
+		
+		public UUID getReference() {
+			return reference;
+		}
+		public void setReference(UUID reference) {
+			this.reference = reference;
+		}
+		public String getProduct() {
+			return product;
+		}
+		public void setProduct(String product) {
+			this.product = product;
+		}
+		public Integer getQuantity() {
+			return quantity;
+		}
+		public void setQuantity(Integer quantity) {
+			this.quantity = quantity;
+		}
+		public Double getPrice() {
+			return price;
+		}
+		public void setPrice(Double price) {
+			this.price = price;
+		}
+	}
+}
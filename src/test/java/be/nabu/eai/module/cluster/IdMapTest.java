@@ -0,0 +1,124 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class IdMapTest extends TestCase {
+	
+	public void testPutAndRemove() {
+		IdMap<String> map = new IdMap<String>();
+		assertTrue(map.isEmpty());
+		assertNull(map.put("a.b", "1"));
+		assertEquals("1", map.put("a.b", "2"));
+		assertEquals(1, map.size());
+		assertEquals("2", map.get("a.b"));
+		assertEquals("2", map.remove("a.b"));
+		assertNull(map.remove("a.b"));
+		assertTrue(map.isEmpty());
+	}
+	
+	public void testChildren() {
+		IdMap<String> map = new IdMap<String>();
+		map.put("a", "a");
+		map.put("a.b", "a.b");
+		map.put("a.b.c", "a.b.c");
+		map.put("a.b.c.d", "a.b.c.d");
+		map.put("a.bc", "a.bc");
+		map.put("ab.c", "ab.c");
+		assertEquals(Arrays.asList("a.b.c", "a.b.c.d"), sorted(map.getChildren("a.b")));
+		assertEquals(Arrays.asList("a.b", "a.b.c", "a.b.c.d", "a.bc"), sorted(map.getChildren("a")));
+		assertEquals(Collections.emptyList(), map.getChildren("a.b.c.d"));
+	}
+	
+	public void testCopyIsNotAffectedByTheOriginal() {
+		IdMap<String> original = new IdMap<String>();
+		original.put("a.b", "1");
+		IdMap<String> copy = original.copy();
+		original.put("a.b", "2");
+		original.put("a.c", "3");
+		original.remove("a.b");
+		assertEquals("1", copy.get("a.b"));
+		assertNull(copy.get("a.c"));
+		assertEquals(1, copy.size());
+	}
+	
+	public void testOriginalIsNotAffectedByTheCopy() {
+		IdMap<String> original = new IdMap<String>();
+		for (int i = 0; i < 100; i++) {
+			original.put("test" + i + ".node", "" + i);
+		}
+		IdMap<String> copy = original.copy();
+		copy.put("test0.node", "changed");
+		copy.put("test0.other", "new");
+		copy.remove("test1.node");
+		assertEquals("0", original.get("test0.node"));
+		assertNull(original.get("test0.other"));
+		assertEquals("1", original.get("test1.node"));
+		assertEquals(100, original.size());
+		assertEquals(100, copy.size());
+	}
+	
+	public void testCopiesOfCopies() {
+		IdMap<String> first = new IdMap<String>();
+		first.put("a.b", "1");
+		IdMap<String> second = first.copy();
+		second.put("a.b", "2");
+		IdMap<String> third = second.copy();
+		third.put("a.b", "3");
+		second.put("a.c", "4");
+		assertEquals("1", first.get("a.b"));
+		assertEquals("2", second.get("a.b"));
+		assertEquals("3", third.get("a.b"));
+		assertNull(third.get("a.c"));
+	}
+	
+	public void testClearDoesNotAffectCopies() {
+		IdMap<String> original = new IdMap<String>();
+		original.put("a.b", "1");
+		IdMap<String> copy = original.copy();
+		copy.clear();
+		assertTrue(copy.isEmpty());
+		assertNull(copy.get("a.b"));
+		assertEquals("1", original.get("a.b"));
+		copy.put("a.b", "2");
+		assertEquals("1", original.get("a.b"));
+	}
+	
+	public void testCopyTo() {
+		IdMap<String> map = new IdMap<String>();
+		map.put("a.b", "1");
+		map.put("c", "2");
+		Map<String, String> target = new HashMap<String, String>();
+		map.copyTo(target);
+		assertEquals(2, target.size());
+		assertEquals("1", target.get("a.b"));
+		assertEquals("2", target.get("c"));
+	}
+	
+	private static List<String> sorted(List<String> list) {
+		Collections.sort(list);
+		return list;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class PeerLoadBalancerTest extends TestCase {
+	
+	private static final long TTL = 60000;
+	
+	public void testIdleServerKeepsTheCall() {
+		PeerLoadBalancer balancer = newBalancer(0.1, 32);
+		assertNull(balancer.choose(Arrays.asList("self", "peer")));
+		// a peer that is known to be less busy does get it
+		balancer.setAdvertisedLoad("peer", 0.05);
+		assertEquals("peer", balancer.choose(Arrays.asList("self", "peer")));
+	}
+	
+	public void testNeverChoosesItself() {
+		PeerLoadBalancer balancer = newBalancer(2, 32);
+		assertNull(balancer.choose(Arrays.asList("self")));
+		for (int i = 0; i < 100; i++) {
+			assertEquals("peer", balancer.choose(Arrays.asList("self", "peer")));
+		}
+	}
+	
+	public void testSaturatedPeersAreSkipped() {
+		PeerLoadBalancer balancer = newBalancer(2, 32);
+		balancer.setAdvertisedLoad("peer1", 1.5);
+		for (int i = 0; i < 100; i++) {
+			assertEquals("peer2", balancer.choose(Arrays.asList("peer1", "peer2")));
+		}
+		balancer.setAdvertisedLoad("peer2", 1);
+		assertNull(balancer.choose(Arrays.asList("peer1", "peer2")));
+	}
+	
+	public void testMaxInFlight() {
+		PeerLoadBalancer balancer = newBalancer(2, 2);
+		balancer.started("peer");
+		balancer.started("peer");
+		assertEquals(2, balancer.getInFlight("peer"));
+		assertNull(balancer.choose(Arrays.asList("peer")));
+		balancer.finished("peer");
+		assertEquals("peer", balancer.choose(Arrays.asList("peer")));
+	}
+	
+	public void testLeastExpensiveOfTwo() {
+		PeerLoadBalancer balancer = newBalancer(2, 32);
+		balancer.started("slow");
+		balancer.succeeded("slow", 1000);
+		balancer.started("fast");
+		balancer.succeeded("fast", 10);
+		// with two candidates both are always compared
+		for (int i = 0; i < 100; i++) {
+			assertEquals("fast", balancer.choose(Arrays.asList("slow", "fast")));
+		}
+	}
+	
+	public void testLatencyIsAMovingAverage() {
+		PeerLoadBalancer balancer = newBalancer(2, 32);
+		balancer.started("peer");
+		balancer.succeeded("peer", 100);
+		assertEquals(100d, balancer.getLatency("peer"), 0.001);
+		balancer.started("peer");
+		balancer.succeeded("peer", 200);
+		assertEquals(130d, balancer.getLatency("peer"), 0.001);
+		assertEquals(0, balancer.getInFlight("peer"));
+	}
+	
+	public void testFailingPeerIsExcluded() {
+		PeerLoadBalancer balancer = newBalancer(2, 32);
+		balancer.started("peer");
+		balancer.failed("peer");
+		assertEquals(1, balancer.getFailures("peer"));
+		assertEquals(0, balancer.getInFlight("peer"));
+		assertNull(balancer.choose(Arrays.asList("peer")));
+		for (int i = 0; i < 100; i++) {
+			assertEquals("other", balancer.choose(Arrays.asList("peer", "other")));
+		}
+		// a success resets the consecutive failures
+		balancer.started("peer");
+		balancer.succeeded("peer", 10);
+		assertEquals(0, balancer.getFailures("peer"));
+	}
+	
+	public void testFinishedCallsDoNotCount() {
+		PeerLoadBalancer balancer = newBalancer(2, 32);
+		balancer.started("peer");
+		balancer.finished("peer");
+		assertEquals(0, balancer.getFailures("peer"));
+		assertEquals(0d, balancer.getLatency("peer"), 0.001);
+	}
+	
+	public void testExpiredLoadIsUnknown() throws InterruptedException {
+		PeerLoadBalancer balancer = new PeerLoadBalancer(new ClusterHeartbeat(null, "self"), "self", 32, 10) {
+			@Override
+			double getOwnLoad() {
+				return 0.5;
+			}
+		};
+		balancer.setAdvertisedLoad("peer", 0.1);
+		assertEquals("peer", balancer.choose(Arrays.asList("peer")));
+		Thread.sleep(50);
+		// we no longer know that it is less busy than we are
+		assertNull(balancer.choose(Arrays.asList("peer")));
+	}
+	
+	// a heartbeat that is not started suspects no one
+	private static PeerLoadBalancer newBalancer(final double ownLoad, int maxInFlight) {
+		return new PeerLoadBalancer(new ClusterHeartbeat(null, "self"), "self", maxInFlight, TTL) {
+			@Override
+			double getOwnLoad() {
+				return ownLoad;
+			}
+		};
+	}
+}
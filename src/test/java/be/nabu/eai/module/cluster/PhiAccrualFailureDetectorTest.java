@@ -0,0 +1,72 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import junit.framework.TestCase;
+
+public class PhiAccrualFailureDetectorTest extends TestCase {
+	
+	private static final double THRESHOLD = ClusterHeartbeat.DEFAULT_THRESHOLD;
+	
+	public void testHostThatNeverAnswersIsSuspected() {
+		PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(1000, 3000, 250, 0);
+		assertTrue(detector.phi(500) < 1);
+		assertTrue(detector.phi(20000) > THRESHOLD);
+	}
+	
+	public void testRegularHeartbeatsAreNotSuspected() {
+		PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(1000, 3000, 250, 0);
+		for (long time = 1000; time <= 30000; time += 1000) {
+			detector.heartbeat(time);
+			assertTrue(detector.phi(time + 500) < 1);
+		}
+	}
+	
+	public void testSuspicionGrowsWithMissedHeartbeats() {
+		PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(1000, 3000, 250, 0);
+		for (long time = 1000; time <= 30000; time += 1000) {
+			detector.heartbeat(time);
+		}
+		double shortPause = detector.phi(32000), longPause = detector.phi(36000);
+		assertTrue(shortPause < longPause);
+		assertTrue(shortPause < THRESHOLD);
+		assertTrue(detector.phi(45000) > THRESHOLD);
+		// a heartbeat clears the suspicion
+		detector.heartbeat(45000);
+		assertTrue(detector.phi(45500) < 1);
+	}
+	
+	public void testLateFirstHeartbeatIsNotAnInterval() {
+		PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(1000, 3000, 250, 0);
+		// the peer only came up after a minute, that is not the interval of its heartbeats
+		long time = 60000;
+		for (int i = 0; i < 10; i++) {
+			detector.heartbeat(time);
+			time += 1000;
+		}
+		assertTrue(detector.phi(time + 10000) > THRESHOLD);
+	}
+	
+	public void testOutOfOrderHeartbeatIsIgnored() {
+		PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(1000, 3000, 250, 0);
+		detector.heartbeat(1000);
+		detector.heartbeat(2000);
+		detector.heartbeat(1500);
+		assertEquals(2000, detector.getLastHeartbeat());
+	}
+}
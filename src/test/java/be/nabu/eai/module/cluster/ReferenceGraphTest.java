@@ -0,0 +1,86 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class ReferenceGraphTest extends TestCase {
+	
+	public void testDependenciesAreInReloadOrder() {
+		ReferenceGraph graph = new ReferenceGraph();
+		graph.add("test.d", Arrays.asList("test.a", "test.c"));
+		graph.add("test.c", Arrays.asList("test.b"));
+		graph.add("test.b", Arrays.asList("test.a"));
+		assertEquals(Arrays.asList("test.b", "test.c", "test.d"), graph.getDependenciesToReload(Arrays.asList("test.a")));
+	}
+	
+	public void testCyclesAreReloadedOnce() {
+		ReferenceGraph graph = new ReferenceGraph();
+		graph.add("test.x", Arrays.asList("test.y"));
+		graph.add("test.y", Arrays.asList("test.x"));
+		List<String> reload = graph.getDependenciesToReload(Arrays.asList("test.x"));
+		assertEquals(2, reload.size());
+		assertTrue(reload.containsAll(Arrays.asList("test.x", "test.y")));
+	}
+	
+	public void testRemoveUpdatesBothDirections() {
+		ReferenceGraph graph = new ReferenceGraph();
+		graph.add("test.b", Arrays.asList("test.a"));
+		graph.add("test.c", Arrays.asList("test.a"));
+		graph.remove("test.b");
+		assertFalse(graph.hasReferences("test.b"));
+		assertEquals(Arrays.asList("test.c"), graph.getDependencies("test.a"));
+	}
+	
+	public void testAddReplacesExistingEdges() {
+		ReferenceGraph graph = new ReferenceGraph();
+		graph.add("test.c", Arrays.asList("test.a"));
+		graph.add("test.c", Arrays.asList("test.b"));
+		assertTrue(graph.getDependencies("test.a").isEmpty());
+		assertEquals(Arrays.asList("test.c"), graph.getDependencies("test.b"));
+	}
+	
+	public void testChangedEdgesInvalidateMemoizedDependencies() {
+		ReferenceGraph graph = new ReferenceGraph();
+		graph.add("test.b", Arrays.asList("test.a"));
+		assertEquals(Arrays.asList("test.b"), graph.getDependenciesToReload(Arrays.asList("test.a")));
+		graph.add("test.c", Arrays.asList("test.b"));
+		assertEquals(Arrays.asList("test.b", "test.c"), graph.getDependenciesToReload(Arrays.asList("test.a")));
+	}
+	
+	public void testCopyDoesNotChangeTheOriginal() {
+		ReferenceGraph original = new ReferenceGraph();
+		original.add("test.b", Arrays.asList("test.a"));
+		assertEquals(Arrays.asList("test.b"), original.getDependenciesToReload(Arrays.asList("test.a")));
+		
+		ReferenceGraph copy = original.copy();
+		copy.add("test.c", Arrays.asList("test.a"));
+		copy.remove("test.b");
+		
+		assertEquals(Arrays.asList("test.c"), copy.getDependencies("test.a"));
+		assertEquals(Arrays.asList("test.c"), copy.getDependenciesToReload(Arrays.asList("test.a")));
+		assertFalse(copy.hasReferences("test.b"));
+		
+		assertEquals(Arrays.asList("test.b"), original.getDependencies("test.a"));
+		assertEquals(Arrays.asList("test.b"), original.getDependenciesToReload(Arrays.asList("test.a")));
+		assertFalse(original.hasReferences("test.c"));
+	}
+}
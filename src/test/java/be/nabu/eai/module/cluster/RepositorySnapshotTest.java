@@ -0,0 +1,107 @@
+/*
+* Copyright (C) 2015 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.eai.module.cluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class RepositorySnapshotTest extends TestCase {
+	
+	private File file;
+	
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("repository", ".snapshot");
+	}
+	
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+	
+	public void testRoundTrip() throws IOException {
+		RepositorySnapshot snapshot = new RepositorySnapshot();
+		snapshot.put("test.a", new RepositorySnapshot.Record(1, "test.Artifact", Arrays.asList("test.b", "test.c"), false));
+		snapshot.put("test.b", new RepositorySnapshot.Record(2, null, null, true));
+		snapshot.write(file);
+		
+		RepositorySnapshot read = RepositorySnapshot.read(file);
+		assertNotNull(read);
+		assertEquals(2, read.size());
+		assertEquals(1, read.get("test.a").getStamp());
+		assertEquals("test.Artifact", read.get("test.a").getArtifactClass());
+		assertEquals(Arrays.asList("test.b", "test.c"), read.get("test.a").getReferences());
+		assertFalse(read.get("test.a").isRepositoryManager());
+		assertNull(read.get("test.b").getArtifactClass());
+		assertNull(read.get("test.b").getReferences());
+		assertTrue(read.get("test.b").isRepositoryManager());
+	}
+	
+	public void testMissingFileIsNoSnapshot() {
+		file.delete();
+		assertNull(RepositorySnapshot.read(file));
+	}
+	
+	public void testTruncatedFileIsNoSnapshot() throws IOException {
+		RepositorySnapshot snapshot = new RepositorySnapshot();
+		snapshot.put("test.a", new RepositorySnapshot.Record(1, "test.Artifact", Arrays.asList("test.b"), false));
+		snapshot.write(file);
+		byte [] bytes = Files.readAllBytes(file.toPath());
+		Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 3));
+		assertNull(RepositorySnapshot.read(file));
+	}
+	
+	public void testCorruptLengthIsNoSnapshot() throws IOException {
+		RepositorySnapshot snapshot = new RepositorySnapshot();
+		snapshot.put("test.a", new RepositorySnapshot.Record(1, "test.Artifact", null, false));
+		snapshot.write(file);
+		// the length of the first id comes right after the magic, version and record count
+		RandomAccessFile access = new RandomAccessFile(file, "rw");
+		try {
+			access.seek(12);
+			access.writeInt(Integer.MAX_VALUE);
+		}
+		finally {
+			access.close();
+		}
+		assertNull(RepositorySnapshot.read(file));
+	}
+	
+	public void testCorruptRecordCountIsNoSnapshot() throws IOException {
+		new RepositorySnapshot().write(file);
+		RandomAccessFile access = new RandomAccessFile(file, "rw");
+		try {
+			access.seek(8);
+			access.writeInt(Integer.MAX_VALUE);
+		}
+		finally {
+			access.close();
+		}
+		assertNull(RepositorySnapshot.read(file));
+	}
+	
+	public void testGarbageIsNoSnapshot() throws IOException {
+		Files.write(file.toPath(), "not a snapshot at all".getBytes("UTF-8"));
+		assertNull(RepositorySnapshot.read(file));
+	}
+}